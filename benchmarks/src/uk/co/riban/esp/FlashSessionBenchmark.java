@@ -0,0 +1,95 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FlashSessionBenchmark class measures a complete 1MB flash write against the simulator over an in-memory link
+ * @author Brian Walton
+ * @note Simulator timing is disabled so the result is the host and protocol cost alone, not UART or flash time.
+ * Each loader runs with the block size and flash window the engine uses for it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlashSessionBenchmark {
+
+	final static int IMAGE_SIZE = 0x100000;
+	final static int FLASH_SIZE = 0x400000;
+	final static int IMAGE_OFFSET = 0x0;
+
+	@Param({"rom", "stub"})
+	public String loader;
+
+	private EspSimulator m_simulator;
+	private esp8266 m_esp;
+	private ByteBuffer m_image;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		byte[] ab = new byte[IMAGE_SIZE];
+		new Random(1).nextBytes(ab);
+		m_image = ByteBuffer.wrap(ab);
+		m_simulator = new EspSimulator(FLASH_SIZE, 1);
+		m_simulator.setStubSupport(loader.equals("stub"));
+		m_simulator.start();
+		m_esp = new esp8266(m_simulator.getHostTransport(), esp8266.ESP_ROM_BAUD);
+		if(!m_esp.connect())
+			throw new IllegalStateException("Simulator did not connect");
+		if(loader.equals("stub") && !m_esp.loadStub(createStub()))
+			throw new IllegalStateException("Simulator did not start stub");
+	}
+
+	/**
+	 * Create a stub with placeholder code - the simulator starts its stub when any code is run
+	 */
+	private static StubLoader createStub() throws IOException {
+		byte[] abText = new byte[2048];
+		new Random(2).nextBytes(abText);
+		Path path = Files.createTempFile("stub", ".json");
+		try {
+			String sJson = String.format("{\"text\": \"%s\", \"text_start\": 1074790400, \"entry\": 1074790404}", Base64.getEncoder().encodeToString(abText));
+			Files.write(path, sJson.getBytes(StandardCharsets.US_ASCII));
+			return StubLoader.load(path.toString());
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		m_esp.close();
+		m_simulator.stop();
+	}
+
+	/**
+	 * Erase, write and finish 1MB uncompressed
+	 */
+	@Benchmark
+	public boolean flash1MB() {
+		return m_esp.flashWrite(m_image, IMAGE_OFFSET) && m_esp.flashFinish(false);
+	}
+}
@@ -0,0 +1,103 @@
+package uk.co.riban.esp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ProtocolBenchmark class measures the per-block cost of the protocol layer - SLIP encoding, decoding and checksum
+ * @author Brian Walton
+ * @note Payload content matters because 0xc0 and 0xdb bytes are escaped to two bytes.
+ * "plain" has no escapes, "random" has about 1 in 128 and "escapes" is every byte.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	// Quantity of frames decoded per operation - must fit SlipReader queue
+	final static int DECODE_FRAMES = 8;
+
+	@Param({"plain", "random", "escapes"})
+	public String payload;
+
+	@Param({"1024", "16384"})
+	public int blockSize;
+
+	private final SlipCodec m_codec = new SlipCodec();
+	private ByteBuffer m_block; //Flash data block
+	private ByteBuffer m_stream; //Encoded data packets as received from stub during flash read
+	private SlipReader m_reader;
+	private ResponseDispatcher m_dispatcher;
+
+	@Setup
+	public void setup() {
+		byte[] ab = new byte[blockSize];
+		if(payload.equals("random"))
+			new Random(1).nextBytes(ab);
+		else if(payload.equals("escapes"))
+			for(int nIndex = 0; nIndex < ab.length; ++nIndex)
+				ab[nIndex] = (nIndex % 2 == 0) ? SlipCodec.SLIP_END : (byte)0xdb;
+		m_block = ByteBuffer.wrap(ab);
+
+		SlipCodec encoder = new SlipCodec();
+		ByteBuffer frame = encoder.encodeFrame(m_block);
+		m_stream = ByteBuffer.allocate(frame.remaining() * DECODE_FRAMES).order(ByteOrder.LITTLE_ENDIAN);
+		for(int nFrame = 0; nFrame < DECODE_FRAMES; ++nFrame)
+			m_stream.put(frame.duplicate());
+		m_stream.flip();
+		m_reader = new SlipReader();
+		m_dispatcher = new ResponseDispatcher(m_reader);
+	}
+
+	/**
+	 * Build a FLASH_DATA command as sent by esp8266.write() - escape, checksum and header
+	 */
+	@Benchmark
+	public ByteBuffer encodeFlashData() {
+		return m_codec.encodeCommand(esp8266.ESP_OP_FLASH_DATA, m_block, m_block.remaining(), 0, 0, 0);
+	}
+
+	/**
+	 * Build a parameter-only command as sent by commonCommand(), e.g. FLASH_BEGIN
+	 */
+	@Benchmark
+	public ByteBuffer encodeCommonCommand() {
+		return m_codec.encodeCommand(esp8266.ESP_OP_FLASH_BEGIN, null, 0x100000, 0x400, 0x400, 0x10000);
+	}
+
+	/**
+	 * Checksum of a data block
+	 */
+	@Benchmark
+	public int checksum() {
+		return esp8266.checksum(m_block, esp8266.ESP_CHECKSUM_MAGIC);
+	}
+
+	/**
+	 * Receive a burst of packets and read each one as slipRead() does - decode, queue and recycle
+	 */
+	@Benchmark
+	public void slipRead(Blackhole blackhole) {
+		m_reader.receive(m_stream.duplicate());
+		for(int nFrame = 0; nFrame < DECODE_FRAMES; ++nFrame)
+			blackhole.consume(m_dispatcher.read(1));
+	}
+}
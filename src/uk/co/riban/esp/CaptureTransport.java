@@ -0,0 +1,117 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * CaptureTransport class passes calls to another transport, recording traffic and line changes to a WireCapture while one is set
+ * @author Brian Walton
+ * @note Without a capture the only cost is a volatile read per call.
+ */
+public class CaptureTransport implements Transport {
+
+	private final Transport m_transport;
+	private volatile WireCapture m_capture = null;
+
+	/**
+	 * @param transport Transport to pass calls to
+	 */
+	CaptureTransport(Transport transport) {
+		m_transport = transport;
+	}
+
+	/**
+	 * Start or stop recording
+	 * @param capture Capture to record to or null to stop recording. Previous capture is not closed.
+	 */
+	void setCapture(WireCapture capture) {
+		m_capture = capture;
+		if(capture != null && m_transport.isOpen())
+			capture.event(WireCapture.CAP_EVENT, "capture started on open link " + m_transport.getName());
+	}
+
+	/**
+	 * @return Current capture or null if not recording
+	 */
+	WireCapture getCapture() {
+		return m_capture;
+	}
+
+	@Override
+	public void open(int baud, final Receiver receiver) throws IOException {
+		WireCapture capture = m_capture;
+		if(capture != null) {
+			capture.event(WireCapture.CAP_OPEN, m_transport.getName());
+			capture.baud(baud);
+		}
+		m_transport.open(baud, new Receiver() {
+			@Override
+			public void receive(ByteBuffer data) {
+				WireCapture capture = m_capture;
+				if(capture != null)
+					capture.data(WireCapture.CAP_RX, data);
+				receiver.receive(data);
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		WireCapture capture = m_capture;
+		if(capture != null && m_transport.isOpen())
+			capture.event(WireCapture.CAP_CLOSE, null);
+		m_transport.close();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return m_transport.isOpen();
+	}
+
+	@Override
+	public void setBaud(int baud) throws IOException {
+		WireCapture capture = m_capture;
+		if(capture != null)
+			capture.baud(baud);
+		m_transport.setBaud(baud);
+	}
+
+	@Override
+	public boolean hasBaudControl() {
+		return m_transport.hasBaudControl();
+	}
+
+	@Override
+	public boolean hasLineControl() {
+		return m_transport.hasLineControl();
+	}
+
+	@Override
+	public void setDtr(boolean dtr) throws IOException {
+		WireCapture capture = m_capture;
+		if(capture != null)
+			capture.line(WireCapture.CAP_DTR, dtr);
+		m_transport.setDtr(dtr);
+	}
+
+	@Override
+	public void setRts(boolean rts) throws IOException {
+		WireCapture capture = m_capture;
+		if(capture != null)
+			capture.line(WireCapture.CAP_RTS, rts);
+		m_transport.setRts(rts);
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		WireCapture capture = m_capture;
+		if(capture != null)
+			capture.data(WireCapture.CAP_TX, data);
+		m_transport.write(data);
+	}
+
+	@Override
+	public String getName() {
+		return m_transport.getName();
+	}
+}
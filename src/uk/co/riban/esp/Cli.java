@@ -0,0 +1,482 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @brief	Headless command line interface to the ESP8266 engine
+ * @author	Brian Walton
+ * @note	Results are printed to stdout as key=value lines. Diagnostics go to stderr.
+ */
+public class Cli {
+
+	// Exit codes
+	final static int EXIT_OK         = 0;
+	final static int EXIT_USAGE      = 1;
+	final static int EXIT_CONNECT    = 2;
+	final static int EXIT_FAILED     = 3;
+
+	// Commands, checked before any port is touched
+	final static List<String> COMMANDS = Arrays.asList("reset", "info", "flash", "verify", "run", "read", "replay");
+
+	// Time between metrics snapshots in milliseconds
+	final static int METRICS_PERIOD = 5000;
+
+	final static String USAGE =
+			"Usage: jesper --port PORT [options] COMMAND [args]\n" +
+			"Commands:\n" +
+			"  reset                    Reset ESP8266 in to run mode\n" +
+			"  info                     Print chip ID, MAC and flash ID\n" +
+			"  flash [OFFSET FILE]...   Write images (and any from --job)\n" +
+			"  verify [OFFSET FILE]...  Compare images (and any from --job) with flash\n" +
+			"  run                      Run application in flash\n" +
+			"  read OFFSET LENGTH FILE  Read flash in to file\n" +
+			"  replay FILE              Decode a wire capture (no port required)\n" +
+			"Options:\n" +
+			"  --port PORT     Serial port (repeat to flash several ports concurrently)\n" +
+			"  --baud BAUD     Highest baud rate to negotiate (default " + esp8266.ESP_STUB_BAUDS[0] + ")\n" +
+			"  --job FILE      Job file with one 'OFFSET FILE' per line\n" +
+			"  --stub FILE     Flasher stub (default " + StubLoader.DEFAULT_FILE + ")\n" +
+			"  --shadow DIR    Shadow record directory (default " + FlashShadow.DEFAULT_DIR + ")\n" +
+			"  --profiles FILE Port reset profiles (default " + PortProfiles.DEFAULT_FILE + ")\n" +
+			"  --no-compress   Write uncompressed\n" +
+			"  --no-diff       Write whole images\n" +
+			"  --no-reboot     Do not reboot after flash\n" +
+			"  --verify MODE   Check written data: none, digest (default) or readback\n" +
+			"  --metrics FILE  Write link metrics to FILE every " + METRICS_PERIOD / 1000 + "s and on exit\n" +
+			"  --capture DIR   Record traffic and line changes of each port to a file in DIR\n" +
+			"  --speed RATE    Replay at RATE times captured speed (default 0 - as fast as possible)\n" +
+			"  --debug         Print debug output to stderr\n" +
+			"  --log SPEC      Log levels by category, e.g. protocol=trace,ui=off\n";
+
+	private List<String> m_ports = new ArrayList<String>();
+	private List<Integer> m_offsets = new ArrayList<Integer>();
+	private List<String> m_images = new ArrayList<String>();
+	private String m_sCommand = null;
+	private int m_nBaud = esp8266.ESP_STUB_BAUDS[0]; //Fallback finds the fastest rate the link carries
+	private String m_sStub = StubLoader.DEFAULT_FILE;
+	private String m_sShadowDir = FlashShadow.DEFAULT_DIR;
+	private String m_sProfiles = PortProfiles.DEFAULT_FILE;
+	private String m_sMetrics = null;
+	private String m_sCaptureDir = null;
+	private double m_dSpeed = 0;
+	private boolean m_bCompress = true;
+	private boolean m_bDifferential = true;
+	private boolean m_bReboot = true;
+	private int m_nVerify = EspUpload.VERIFY_DIGEST;
+	private int m_nReadOffset;
+	private int m_nReadLength;
+	private String m_sReadFile;
+	private String m_sReplayFile;
+
+	public static void main(String[] args) {
+		System.exit(run(args));
+	}
+
+	/**
+	 * Parse arguments and run command
+	 * @param args Command line arguments
+	 * @return Exit code
+	 */
+	static int run(String[] args) {
+		Cli cli = new Cli();
+		try {
+			if(!cli.parse(args)) {
+				System.err.print(USAGE);
+				return EXIT_USAGE;
+			}
+		} catch(IOException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			return EXIT_USAGE;
+		}
+		if(cli.m_sMetrics == null)
+			return cli.execute();
+		LinkMetrics.startSnapshots(cli.m_sMetrics, METRICS_PERIOD);
+		try {
+			return cli.execute();
+		} finally {
+			LinkMetrics.stopSnapshots();
+			LinkMetrics.writeSnapshot(cli.m_sMetrics);
+		}
+	}
+
+	private boolean parse(String[] args) throws IOException {
+		List<String> positional = new ArrayList<String>();
+		for(int nArg = 0; nArg < args.length; ++nArg) {
+			String sArg = args[nArg];
+			boolean bHasValue = nArg + 1 < args.length;
+			if(sArg.equals("--port") && bHasValue)
+				m_ports.add(args[++nArg]);
+			else if(sArg.equals("--baud") && bHasValue)
+				m_nBaud = Integer.parseInt(args[++nArg]);
+			else if(sArg.equals("--job") && bHasValue)
+				readJob(args[++nArg]);
+			else if(sArg.equals("--stub") && bHasValue)
+				m_sStub = args[++nArg];
+			else if(sArg.equals("--shadow") && bHasValue)
+				m_sShadowDir = args[++nArg];
+			else if(sArg.equals("--profiles") && bHasValue)
+				m_sProfiles = args[++nArg];
+			else if(sArg.equals("--metrics") && bHasValue)
+				m_sMetrics = args[++nArg];
+			else if(sArg.equals("--capture") && bHasValue)
+				m_sCaptureDir = args[++nArg];
+			else if(sArg.equals("--speed") && bHasValue)
+				m_dSpeed = Double.parseDouble(args[++nArg]);
+			else if(sArg.equals("--no-compress"))
+				m_bCompress = false;
+			else if(sArg.equals("--no-diff"))
+				m_bDifferential = false;
+			else if(sArg.equals("--no-reboot"))
+				m_bReboot = false;
+			else if(sArg.equals("--verify") && bHasValue) {
+				String sMode = args[++nArg];
+				if(sMode.equals("none"))
+					m_nVerify = EspUpload.VERIFY_NONE;
+				else if(sMode.equals("digest"))
+					m_nVerify = EspUpload.VERIFY_DIGEST;
+				else if(sMode.equals("readback"))
+					m_nVerify = EspUpload.VERIFY_READBACK;
+				else
+					return false;
+			}
+			else if(sArg.equals("--debug"))
+				Log.setDebug(true);
+			else if(sArg.equals("--log") && bHasValue) {
+				if(!Log.configure(args[++nArg]))
+					return false;
+			}
+			else if(sArg.startsWith("--"))
+				return false;
+			else
+				positional.add(sArg);
+		}
+		if(positional.isEmpty())
+			return false;
+		m_sCommand = positional.get(0);
+		if(!COMMANDS.contains(m_sCommand)) {
+			System.err.println("Unknown command " + m_sCommand);
+			return false;
+		}
+		if(m_sCommand.equals("replay")) {
+			if(positional.size() != 2)
+				return false;
+			m_sReplayFile = positional.get(1);
+			return true;
+		}
+		if(m_ports.isEmpty())
+			return false;
+		if(m_sCommand.equals("read")) {
+			if(positional.size() != 4)
+				return false;
+			m_nReadOffset = Integer.decode(positional.get(1));
+			m_nReadLength = Integer.decode(positional.get(2));
+			m_sReadFile = positional.get(3);
+			return true;
+		}
+		if(positional.size() % 2 != 1)
+			return false;
+		for(int nIndex = 1; nIndex < positional.size(); nIndex += 2)
+			addImage(positional.get(nIndex), positional.get(nIndex + 1));
+		return true;
+	}
+
+	private void readJob(String sJob) throws IOException {
+		for(String sLine: Files.readAllLines(Paths.get(sJob), StandardCharsets.UTF_8)) {
+			sLine = sLine.trim();
+			if(sLine.isEmpty() || sLine.startsWith("#"))
+				continue;
+			String[] asFields = sLine.split("\\s+", 2);
+			if(asFields.length != 2)
+				throw new IllegalArgumentException("Invalid job line: " + sLine);
+			addImage(asFields[0], asFields[1]);
+		}
+	}
+
+	private void addImage(String sOffset, String sPath) {
+		m_offsets.add(Integer.decode(sOffset));
+		m_images.add(sPath);
+	}
+
+	private int execute() {
+		if(m_sCommand.equals("replay"))
+			return replay();
+		if(m_sCommand.equals("flash") && m_ports.size() > 1)
+			return farm();
+		if(m_ports.size() != 1) {
+			System.err.println("Command " + m_sCommand + " requires a single port");
+			return EXIT_USAGE;
+		}
+		String sPort = m_ports.get(0);
+		esp8266 esp;
+		try {
+			esp = new esp8266(Transport.forName(sPort), esp8266.ESP_ROM_BAUD);
+		} catch(IOException e) {
+			result(sPort, "error", "Unable to open port");
+			return EXIT_CONNECT;
+		}
+		esp.startCapture(WireCapture.create(m_sCaptureDir, sPort));
+		try {
+			PortProfiles profiles = PortProfiles.load(m_sProfiles);
+			profiles.apply(sPort, esp);
+			if(m_sCommand.equals("reset")) {
+				return result(sPort, esp.reset(false), "reset");
+			}
+			if(!esp.connect()) {
+				result(sPort, "error", "Unable to connect");
+				return EXIT_CONNECT;
+			}
+			profiles.update(sPort, esp);
+			profiles.save();
+			result(sPort, "connect_ms", Integer.toString(esp.getConnectLatency()));
+			if(m_sCommand.equals("run"))
+				return result(sPort, esp.run(true), "run");
+			StubLoader stub = StubLoader.load(m_sStub);
+			if(stub != null && !esp.loadStub(stub) && !esp.connect()) { //Fall back to ROM loader
+				result(sPort, "error", "Unable to reconnect after stub failed");
+				return EXIT_CONNECT;
+			}
+			if(esp.negotiateBaud(m_nBaud) < 0) {
+				result(sPort, "error", "Lost connection while changing baud rate");
+				return EXIT_CONNECT;
+			}
+			result(sPort, "loader", esp.isStub() ? "stub" : "rom");
+			result(sPort, "baud", Integer.toString(esp.getBaud()));
+			if(m_sCommand.equals("info"))
+				return info(sPort, esp);
+			if(m_sCommand.equals("flash"))
+				return flash(sPort, esp);
+			if(m_sCommand.equals("verify"))
+				return verify(sPort, esp);
+			if(m_sCommand.equals("read"))
+				return read(sPort, esp);
+			System.err.println("Unknown command " + m_sCommand);
+			return EXIT_USAGE;
+		} finally {
+			esp.close();
+		}
+	}
+
+	private int info(String sPort, esp8266 esp) {
+		try {
+			esp.identify(true); //Single burst - values below come from cache
+			result(sPort, "chip_id", String.format("0x%08x", esp.getChipId()));
+			int[] mac = esp.getMac();
+			result(sPort, "mac", String.format("%02x:%02x:%02x:%02x:%02x:%02x", mac[0], mac[1], mac[2], mac[3], mac[4], mac[5]));
+			result(sPort, "flash_id", String.format("0x%08x", esp.getFlashId()));
+		} catch(Exception e) {
+			result(sPort, "error", "Unable to read device information");
+			return EXIT_FAILED;
+		}
+		return result(sPort, true, "info");
+	}
+
+	private int flash(String sPort, esp8266 esp) {
+		EspUpload upload = new EspUpload(esp);
+		upload.setCompress(m_bCompress);
+		upload.setDifferential(m_bDifferential);
+		upload.setVerify(m_nVerify);
+		if(m_sShadowDir != null && m_bDifferential) {
+			try {
+				upload.setShadow(FlashShadow.open(m_sShadowDir, esp.getChipId()));
+			} catch(Exception e) {
+				Log.debug(Log.GENERAL, "Unable to read chip ID - shadow record not used");
+			}
+		}
+		long lStart = System.currentTimeMillis();
+		FlashPlan plan = new FlashPlan();
+		try {
+			for(int nIndex = 0; nIndex < m_images.size(); ++nIndex)
+				plan.add(m_offsets.get(nIndex), FirmwareImage.open(m_images.get(nIndex)));
+			plan.build();
+		} catch(IOException | IllegalArgumentException e) {
+			result(sPort, "error", e.getMessage());
+			return EXIT_FAILED;
+		}
+		if(!upload.upload(plan)) {
+			result(sPort, "error", "Failed to write");
+			return EXIT_FAILED;
+		}
+		if(!upload.finish(m_bReboot))
+			return result(sPort, false, "flash");
+		result(sPort, "time_ms", Long.toString(System.currentTimeMillis() - lStart));
+		return result(sPort, true, "flash");
+	}
+
+	private int verify(String sPort, esp8266 esp) {
+		if(!esp.isStub()) {
+			result(sPort, "error", "Verify requires flasher stub");
+			return EXIT_FAILED;
+		}
+		FlashDiff diff = new FlashDiff(esp);
+		boolean bMatch = true;
+		for(int nIndex = 0; nIndex < m_images.size(); ++nIndex) {
+			List<int[]> spans;
+			try {
+				spans = diff.findChanged(FirmwareImage.open(m_images.get(nIndex)).getData(), m_offsets.get(nIndex));
+			} catch(IOException e) {
+				result(sPort, "error", "Unable to read " + m_images.get(nIndex));
+				return EXIT_FAILED;
+			}
+			if(spans == null) {
+				result(sPort, "error", "Unable to verify " + m_images.get(nIndex));
+				return EXIT_FAILED;
+			}
+			for(int[] span: spans)
+				result(sPort, "mismatch", String.format("0x%06x+0x%x", m_offsets.get(nIndex) + span[0], span[1]));
+			bMatch &= spans.isEmpty();
+		}
+		return result(sPort, bMatch, "verify");
+	}
+
+	private int read(final String sPort, esp8266 esp) {
+		if(!esp.isStub()) {
+			result(sPort, "error", "Read requires flasher stub");
+			return EXIT_FAILED;
+		}
+		byte[] digest = new byte[esp8266.ESP_MD5_SIZE];
+		long lStart = System.currentTimeMillis();
+		boolean bSuccess;
+		try {
+			FileChannel out = FileChannel.open(Paths.get(m_sReadFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				bSuccess = esp.readFlash(m_nReadOffset, m_nReadLength, out, new ProgressListener() {
+					private long m_lLast = 0;
+					@Override
+					public void progress(long done, long total) {
+						//Report every 64KB
+						if(done - m_lLast >= 0x10000 || done == total) {
+							System.err.printf("%s: read %d of %d bytes\n", sPort, done, total);
+							m_lLast = done;
+						}
+					}
+				}, digest);
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			result(sPort, "error", "Unable to write " + m_sReadFile);
+			return EXIT_FAILED;
+		}
+		if(bSuccess) {
+			StringBuilder sMd5 = new StringBuilder();
+			for(byte b: digest)
+				sMd5.append(String.format("%02x", b));
+			result(sPort, "md5", sMd5.toString());
+			result(sPort, "time_ms", Long.toString(System.currentTimeMillis() - lStart));
+		}
+		return result(sPort, bSuccess, "read");
+	}
+
+	private int farm() {
+		FlashFarm farm = new FlashFarm();
+		farm.setCompress(m_bCompress);
+		farm.setDifferential(m_bDifferential);
+		farm.setReboot(m_bReboot);
+		for(int nIndex = 0; nIndex < m_images.size(); ++nIndex) {
+			if(!farm.addImage(m_images.get(nIndex), m_offsets.get(nIndex))) {
+				result("*", "error", "Unable to read " + m_images.get(nIndex));
+				return EXIT_FAILED;
+			}
+		}
+		try {
+			farm.prepare();
+		} catch(IllegalArgumentException e) {
+			result("*", "error", e.getMessage());
+			return EXIT_USAGE;
+		}
+		farm.setStub(StubLoader.load(m_sStub));
+		farm.setShadowDir(m_sShadowDir);
+		farm.setMaxBaud(m_nBaud);
+		farm.setVerify(m_nVerify);
+		farm.setCaptureDir(m_sCaptureDir);
+		PortProfiles profiles = PortProfiles.load(m_sProfiles);
+		farm.setProfiles(profiles);
+		int nExit = EXIT_OK;
+		for(Map.Entry<String, Boolean> entry: farm.run(m_ports.toArray(new String[m_ports.size()])).entrySet()) {
+			if(result(entry.getKey(), entry.getValue(), "flash") != EXIT_OK)
+				nExit = EXIT_FAILED;
+		}
+		profiles.save();
+		return nExit;
+	}
+
+	/**
+	 * Print each record of a capture, decoding TX and RX data in to SLIP frames
+	 * @return Exit code
+	 */
+	private int replay() {
+		final String sFile = m_sReplayFile;
+		final SlipCodec txCodec = new SlipCodec();
+		final SlipCodec rxCodec = new SlipCodec();
+		final int[] anFrames = new int[2]; //TX, RX
+		long lRecords;
+		try {
+			WireReplay replay = new WireReplay(sFile);
+			result(sFile, "start", String.format("%tF %<tT.%<tL", replay.getStartTime()));
+			lRecords = replay.play(new WireReplay.Handler() {
+				@Override
+				public void record(int type, long nanos, ByteBuffer data) {
+					String sTime = String.format("%d.%09d", nanos / 1000000000L, nanos % 1000000000L);
+					switch(type) {
+						case WireCapture.CAP_TX:
+						case WireCapture.CAP_RX:
+							boolean bTx = (type == WireCapture.CAP_TX);
+							SlipCodec codec = bTx ? txCodec : rxCodec;
+							while(codec.decode(data)) {
+								ByteBuffer frame = codec.getFrame();
+								++anFrames[bTx ? 0 : 1];
+								if(frame.remaining() < esp8266.ESP_HEADER_SIZE) {
+									result(sFile, "frame", String.format("%s %s short length=%d", sTime, capName(type), frame.remaining()));
+									continue;
+								}
+								int nOp = frame.get(frame.position() + 1) & 0xFF;
+								result(sFile, "frame", String.format("%s %s op=0x%02x length=%d", sTime, capName(type), nOp, frame.remaining()));
+							}
+							break;
+						case WireCapture.CAP_DTR:
+						case WireCapture.CAP_RTS:
+							result(sFile, "line", String.format("%s %s=%d", sTime, capName(type), data.get(data.position())));
+							break;
+						case WireCapture.CAP_BAUD:
+							result(sFile, "baud", String.format("%s %d", sTime, data.order(ByteOrder.LITTLE_ENDIAN).getInt(data.position())));
+							break;
+						default:
+							result(sFile, "event", String.format("%s %s %s", sTime, capName(type), StandardCharsets.UTF_8.decode(data)));
+					}
+				}
+			}, m_dSpeed);
+		} catch(IOException e) {
+			result(sFile, "error", e.getMessage());
+			return EXIT_FAILED;
+		}
+		result(sFile, "records", Long.toString(lRecords));
+		result(sFile, "tx_frames", Integer.toString(anFrames[0]));
+		result(sFile, "rx_frames", Integer.toString(anFrames[1]));
+		return EXIT_OK;
+	}
+
+	private static String capName(int type) {
+		return (type < WireCapture.CAP_NAMES.length) ? WireCapture.CAP_NAMES[type] : Integer.toString(type);
+	}
+
+	private static void result(String sPort, String sKey, String sValue) {
+		System.out.println(sPort + "." + sKey + "=" + sValue);
+	}
+
+	private static int result(String sPort, boolean bSuccess, String sCommand) {
+		result(sPort, sCommand, bSuccess ? "ok" : "failed");
+		return bSuccess ? EXIT_OK : EXIT_FAILED;
+	}
+}
@@ -0,0 +1,50 @@
+package uk.co.riban.esp;
+
+/**
+ * EspException class reports failure of a command to an ESP8266
+ * @author Brian Walton
+ */
+public class EspException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Reason for failure
+	 */
+	enum Reason {
+		PORT, //Serial port could not be opened or used
+		CONNECT, //Device did not respond to sync
+		REJECTED, //Device responded with error status or no response
+		UNSUPPORTED, //Command not available with current loader
+		INVALID, //Device returned unexpected data
+		IO //Host file error
+	};
+
+	private final Reason m_reason;
+
+	/**
+	 * @param reason Reason for failure
+	 * @param sMessage Description of failure
+	 */
+	EspException(Reason reason, String sMessage) {
+		super(sMessage);
+		m_reason = reason;
+	}
+
+	/**
+	 * @param reason Reason for failure
+	 * @param sMessage Description of failure
+	 * @param cause Underlying exception
+	 */
+	EspException(Reason reason, String sMessage, Throwable cause) {
+		super(sMessage, cause);
+		m_reason = reason;
+	}
+
+	/**
+	 * @return Reason for failure
+	 */
+	public Reason getReason() {
+		return m_reason;
+	}
+}
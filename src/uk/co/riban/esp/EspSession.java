@@ -0,0 +1,307 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * EspSession class provides asynchronous access to an ESP8266. Each command returns a CompletableFuture.
+ * @author Brian Walton
+ * @note Commands of one session run one at a time, in the order submitted, on the shared executor.
+ * Many sessions may share a small pool - a session only occupies a thread while one of its commands runs.
+ * Failures complete the future exceptionally with EspException.
+ * If the executor is shut down, queued commands run on the thread that finished the previous one so close() still happens.
+ */
+public class EspSession {
+
+	private final esp8266 m_esp;
+	private final Executor m_executor;
+	private final ArrayDeque<Runnable> m_queue = new ArrayDeque<Runnable>();
+	private boolean m_bRunning = false; //True while a command of this session is on the executor
+	private boolean m_bDeflateWrite = false; //True if last write began with FLASH_DEFL_BEGIN - only used by commands
+
+	/**
+	 * @param esp Session to drive. Must not be used directly while commands are queued.
+	 * @param executor Executor shared by sessions
+	 */
+	EspSession(esp8266 esp, Executor executor) {
+		m_esp = esp;
+		m_executor = executor;
+	}
+
+	/**
+	 * Open a link and create a session on it
+	 * @param sPort Name of serial port or host:port of TCP serial bridge
+	 * @param executor Executor shared by sessions
+	 * @return Future session
+	 */
+	static CompletableFuture<EspSession> open(final String sPort, final Executor executor) {
+		return CompletableFuture.supplyAsync(new Supplier<EspSession>() {
+			@Override
+			public EspSession get() {
+				try {
+					return new EspSession(new esp8266(Transport.forName(sPort), esp8266.ESP_ROM_BAUD), executor);
+				} catch(IOException e) {
+					throw new CompletionException(new EspException(EspException.Reason.PORT, "Unable to open " + sPort, e));
+				}
+			}
+		}, executor);
+	}
+
+	/**
+	 * @return Underlying session, e.g. to pass to EspUpload within a command
+	 */
+	esp8266 getEsp() {
+		return m_esp;
+	}
+
+	/**
+	 * Run a command on the session's turn of the executor
+	 * @param command Command to run. Throw EspException to report failure.
+	 * @return Future result of command
+	 */
+	<T> CompletableFuture<T> submit(final Callable<T> command) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(!future.isDone())
+						future.complete(command.call());
+				} catch(Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					next();
+				}
+			}
+		};
+		synchronized(m_queue) {
+			m_queue.add(task);
+			if(m_bRunning)
+				return future;
+			m_bRunning = true;
+		}
+		next();
+		return future;
+	}
+
+	private void next() {
+		Runnable task;
+		synchronized(m_queue) {
+			task = m_queue.poll();
+			if(task == null) {
+				m_bRunning = false;
+				return;
+			}
+		}
+		try {
+			m_executor.execute(task);
+		} catch(RejectedExecutionException e) {
+			task.run(); //Executor shut down, e.g. job cancelled
+		}
+	}
+
+	private static void check(boolean bSuccess, EspException.Reason reason, String sMessage) throws EspException {
+		if(!bSuccess)
+			throw new EspException(reason, sMessage);
+	}
+
+	/**
+	 * Reset in to bootloader and sync
+	 * @return Future completing when connected
+	 */
+	CompletableFuture<Void> connect() {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws EspException {
+				check(m_esp.connect(), EspException.Reason.CONNECT, "Failed to connect to ESP8266");
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Run flasher stub, falling back to ROM loader if it does not start
+	 * @param stub Flasher stub
+	 * @return Future true if stub is running
+	 */
+	CompletableFuture<Boolean> loadStub(final StubLoader stub) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws EspException {
+				if(m_esp.loadStub(stub))
+					return true;
+				check(m_esp.connect(), EspException.Reason.CONNECT, "Failed to reconnect to ROM loader");
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * @param maxBaud Highest baud rate to try
+	 * @return Future baud rate in use, failing with CONNECT if the link was lost
+	 */
+	CompletableFuture<Integer> negotiateBaud(final int maxBaud) {
+		return submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws EspException {
+				int nBaud = m_esp.negotiateBaud(maxBaud);
+				check(nBaud > 0, EspException.Reason.CONNECT, "Lost connection while changing baud rate");
+				return nBaud;
+			}
+		});
+	}
+
+	/**
+	 * @return Future MAC address as 6 element array
+	 */
+	CompletableFuture<int[]> getMac() {
+		return submit(new Callable<int[]>() {
+			@Override
+			public int[] call() throws EspException {
+				return m_esp.getMac();
+			}
+		});
+	}
+
+	/**
+	 * @return Future chip ID
+	 */
+	CompletableFuture<Integer> getChipId() {
+		return submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws EspException {
+				return m_esp.getChipId();
+			}
+		});
+	}
+
+	/**
+	 * @return Future SPI flash manufacturer and device ID
+	 */
+	CompletableFuture<Integer> getFlashId() {
+		return submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws EspException {
+				return m_esp.getFlashId();
+			}
+		});
+	}
+
+	/**
+	 * Erase flash and prepare for writing blocks
+	 * @param size Quantity of bytes to erase
+	 * @param offset Flash address
+	 * @return Future completing when device is ready for blocks
+	 */
+	CompletableFuture<Void> flashBegin(final int size, final int offset) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws EspException {
+				m_bDeflateWrite = false;
+				check(m_esp.flashBegin(size, offset), EspException.Reason.REJECTED, String.format("Flash begin at 0x%06x rejected", offset));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param data Block of data, position to limit. Must not be changed until future completes.
+	 * @param seq Block sequence number
+	 * @return Future completing when block is written
+	 */
+	CompletableFuture<Void> flashBlock(final ByteBuffer data, final int seq) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws EspException {
+				check(m_esp.flashBlock(data, seq), EspException.Reason.REJECTED, String.format("Flash block %d rejected", seq));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Write an image, compressed where loader supports it
+	 * @param image Image data, position to limit. Must not be changed until future completes.
+	 * @param offset Flash address
+	 * @return Future completing when image is written
+	 */
+	CompletableFuture<Void> write(final ByteBuffer image, final int offset) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws EspException {
+				boolean bSuccess = m_esp.flashDeflWrite(image, null, offset);
+				m_bDeflateWrite = m_esp.isDeflateSupported(); //False if written uncompressed
+				check(bSuccess, EspException.Reason.REJECTED, String.format("Write to 0x%06x failed", offset));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param offset Flash address
+	 * @param size Quantity of bytes
+	 * @return Future MD5 digest of flash region
+	 */
+	CompletableFuture<byte[]> flashMd5(final int offset, final int size) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws EspException {
+				check(m_esp.isStub(), EspException.Reason.UNSUPPORTED, "Flash MD5 requires flasher stub");
+				byte[] digest = new byte[esp8266.ESP_MD5_SIZE];
+				check(m_esp.flashMd5(offset, size, digest), EspException.Reason.REJECTED, String.format("Flash MD5 at 0x%06x failed", offset));
+				return digest;
+			}
+		});
+	}
+
+	/**
+	 * Finish flash write with the end command matching the last begin, compressed or not
+	 * @param reboot True to run application afterwards
+	 * @return Future completing when device has finished
+	 */
+	CompletableFuture<Void> flashFinish(final boolean reboot) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws EspException {
+				boolean bSuccess = m_bDeflateWrite ? m_esp.flashDeflFinish(reboot) : m_esp.flashFinish(reboot);
+				check(bSuccess, EspException.Reason.REJECTED, "Flash end rejected");
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param reboot True to reboot in to application
+	 * @return Future completing when device has left loader
+	 */
+	CompletableFuture<Void> run(final boolean reboot) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws EspException {
+				check(m_esp.run(reboot), EspException.Reason.REJECTED, "Run rejected");
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Close serial port after all queued commands
+	 * @return Future completing when port is closed
+	 */
+	CompletableFuture<Void> close() {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws EspException {
+				check(m_esp.close(), EspException.Reason.PORT, "Unable to close port");
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,663 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * EspSimulator class emulates an ESP8266 ROM loader (and optionally a flasher stub) at the far end of a loopback transport
+ * @author Brian Walton
+ * @note Received data and line changes are handled in order on one simulator thread. Faults are drawn from a seeded
+ * random source so a run with the same seed and the same host traffic behaves the same way. With timing enabled the
+ * simulator sleeps for UART transfer, erase and write times so throughput is limited as on real hardware.
+ */
+public class EspSimulator {
+
+	// ROM error codes returned in response status
+	final static int ERROR_INVALID  = 0x05; //Received message is invalid
+	final static int ERROR_FAILED   = 0x06; //Failed to act on received message
+	final static int ERROR_CHECKSUM = 0x07; //Invalid checksum in message
+
+	// SPI flash controller registers used to read flash ID
+	final static int SPI_CMD = 0x60000200;
+	final static int SPI_W0  = 0x60000240;
+	final static int SPI_CMD_RDID = 0x10000000;
+
+	// Default timing model
+	final static int DEFAULT_BOOT_DELAY  = 30; //Milliseconds from reset release to ROM accepting commands
+	final static int DEFAULT_ERASE_TIME  = 30000; //Microseconds to erase each sector
+	final static int DEFAULT_WRITE_TIME  = 2800; //Microseconds to program each KB
+	final static int SYNC_RESPONSES = 8; //ROM answers each SYNC several times
+	final static int RESET_RC = 10; //Milliseconds for RST to rise after release, during which GPIO0 may still change
+
+	// Queued in place of received data to signal reset release
+	private final static byte[] RESET = new byte[0];
+
+	// Printed by ROM at 74880 baud on boot - garbage at the host's baud rate
+	final static byte[] BOOT_MESSAGE = "\r\n ets Jan  8 2013,rst cause:2, boot mode:(1,7)\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final LoopbackTransport m_host;
+	private final LoopbackTransport m_device;
+	private final byte[] m_abFlash;
+	private final Map<Integer, Integer> m_registers = new HashMap<Integer, Integer>();
+	private final SlipCodec m_rxCodec = new SlipCodec();
+	private final SlipCodec m_txCodec = new SlipCodec();
+	private final BlockingQueue<byte[]> m_events = new LinkedBlockingQueue<byte[]>();
+	private final Random m_random;
+	private Thread m_thread = null;
+
+	// Configuration
+	private volatile int m_nWiring = esp8266.ESP_RESET_DTR;
+	private volatile boolean m_bStubSupport = false;
+	private volatile boolean m_bTiming = false;
+	private volatile int m_nBootDelay = DEFAULT_BOOT_DELAY;
+	private volatile int m_nEraseTime = DEFAULT_ERASE_TIME;
+	private volatile int m_nWriteTime = DEFAULT_WRITE_TIME;
+	private volatile double m_dDropRate = 0;
+	private volatile double m_dChecksumFaultRate = 0;
+	private volatile int m_nRejectBlock = -1; //Flash data block to reject, counted from start, or -1 for none
+	private volatile int m_nMaxBaud = Integer.MAX_VALUE;
+	private volatile int m_nFlashId = 0x001640ef; //4MB Winbond
+
+	// Line state seen by device
+	private boolean m_bReset = false; //True while RST is held low
+	private volatile long m_lRelease = 0; //Time RST was released
+	private volatile boolean m_bStrap = false; //True if GPIO0 is low when RST rises
+
+	// Device state - only used on simulator thread
+	private boolean m_bBootloader = false;
+	private long m_lReadyTime = 0;
+	private boolean m_bStub = false;
+	private int m_nBaud = 0; //Device UART rate, 0 until ROM has detected host's rate
+	private int m_nWriteEnd;
+	private int m_nBlockSize;
+	private Inflater m_inflater = null; //Not null while compressed write in progress
+	private boolean m_bRawWrite = false; //True while uncompressed write in progress
+	private int m_nReadOffset; //Flash read in progress
+	private int m_nReadLength = 0;
+	private int m_nReadSent;
+	private int m_nReadAcked;
+	private int m_nReadPacket;
+	private int m_nReadInFlight;
+	private MessageDigest m_readMd5;
+	private long m_lDebt = 0; //Nanoseconds of modelled time not yet slept
+
+	// Statistics
+	private volatile long m_lCommands = 0;
+	private volatile long m_lErasedSectors = 0;
+	private volatile long m_lFaults = 0;
+
+	/**
+	 * @param flashSize Size of simulated flash in bytes
+	 * @param seed Seed for fault injection
+	 */
+	EspSimulator(int flashSize, long seed) {
+		m_abFlash = new byte[flashSize];
+		Arrays.fill(m_abFlash, (byte)0xff);
+		m_random = new Random(seed);
+		setOtp(0x4a000000, 0x0001abcd, 0); //MAC ac:d0:74:ab:cd:4a
+		LoopbackTransport[] pair = LoopbackTransport.createPair("simulator");
+		m_host = pair[0];
+		m_device = pair[1];
+		m_device.setLineListener(new Runnable() {
+			@Override
+			public void run() {
+				linesChanged();
+			}
+		});
+	}
+
+	/**
+	 * @return Transport to pass to esp8266
+	 */
+	Transport getHostTransport() {
+		return m_host;
+	}
+
+	/**
+	 * Start simulator thread
+	 */
+	synchronized void start() {
+		if(m_thread != null)
+			return;
+		m_device.open(esp8266.ESP_ROM_BAUD, new Transport.Receiver() {
+			@Override
+			public void receive(ByteBuffer data) {
+				byte[] ab = new byte[data.remaining()];
+				data.get(ab);
+				m_events.add(ab);
+			}
+		});
+		m_thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(!Thread.currentThread().isInterrupted())
+						handle(m_events.take());
+				} catch(InterruptedException e) {
+					//Stopped
+				}
+			}
+		}, "EspSimulator");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	/**
+	 * Stop simulator thread
+	 */
+	synchronized void stop() {
+		if(m_thread == null)
+			return;
+		m_thread.interrupt();
+		m_thread = null;
+		m_device.close();
+	}
+
+	/**
+	 * @param mac0 OTP word at ESP_OTP_MAC0
+	 * @param mac1 OTP word at ESP_OTP_MAC1
+	 * @param mac3 OTP word at ESP_OTP_MAC3
+	 */
+	synchronized void setOtp(int mac0, int mac1, int mac3) {
+		m_registers.put(esp8266.ESP_OTP_MAC0, mac0);
+		m_registers.put(esp8266.ESP_OTP_MAC1, mac1);
+		m_registers.put(esp8266.ESP_OTP_MAC3, mac3);
+	}
+
+	/**
+	 * @param flashId SPI flash ID reported by flash
+	 */
+	void setFlashId(int flashId) {
+		m_nFlashId = flashId;
+	}
+
+	/**
+	 * @param strategy How DTR/RTS are wired to RST/GPIO0 (esp8266.ESP_RESET_*)
+	 */
+	void setWiring(int strategy) {
+		m_nWiring = strategy;
+	}
+
+	/**
+	 * @param support True to run a flasher stub when RAM code is executed, adding compressed write, MD5, read and baud change commands
+	 */
+	void setStubSupport(boolean support) {
+		m_bStubSupport = support;
+	}
+
+	/**
+	 * @param timing True to sleep for modelled transfer, erase and write times
+	 */
+	void setTiming(boolean timing) {
+		m_bTiming = timing;
+	}
+
+	/**
+	 * @param ms Time from reset release to ROM accepting commands
+	 */
+	void setBootDelay(int ms) {
+		m_nBootDelay = ms;
+	}
+
+	/**
+	 * @param us Time to erase each sector, e.g. increase to inject slow erases
+	 */
+	void setEraseTime(int us) {
+		m_nEraseTime = us;
+	}
+
+	/**
+	 * @param us Time to program each KB
+	 */
+	void setWriteTime(int us) {
+		m_nWriteTime = us;
+	}
+
+	/**
+	 * @param rate Probability of each received byte being lost
+	 */
+	void setDropRate(double rate) {
+		m_dDropRate = rate;
+	}
+
+	/**
+	 * @param rate Probability of a data block being rejected as having a bad checksum
+	 */
+	void setChecksumFaultRate(double rate) {
+		m_dChecksumFaultRate = rate;
+	}
+
+	/**
+	 * Reject one flash data block as having a bad checksum, e.g. to exercise recovery with blocks in flight behind it
+	 * @param block Index of flash data block, counted across all writes from now, or -1 for none
+	 */
+	void setRejectBlock(int block) {
+		m_nRejectBlock = block;
+	}
+
+	/**
+	 * @param baud Fastest rate the link carries. Device accepts a change to a faster rate then loses every byte, as a long cable would.
+	 */
+	void setMaxBaud(int baud) {
+		m_nMaxBaud = baud;
+	}
+
+	/**
+	 * Preload flash content
+	 * @param offset Flash address
+	 * @param data Content
+	 */
+	synchronized void loadFlash(int offset, byte[] data) {
+		System.arraycopy(data, 0, m_abFlash, offset, data.length);
+	}
+
+	/**
+	 * @return Copy of simulated flash
+	 */
+	synchronized byte[] getFlash() {
+		return m_abFlash.clone();
+	}
+
+	/**
+	 * @return Quantity of commands handled
+	 */
+	long getCommandCount() {
+		return m_lCommands;
+	}
+
+	/**
+	 * @return Quantity of sectors erased
+	 */
+	long getErasedSectors() {
+		return m_lErasedSectors;
+	}
+
+	/**
+	 * @return Quantity of faults injected
+	 */
+	long getFaultCount() {
+		return m_lFaults;
+	}
+
+	/**
+	 * Called on host's thread when DTR or RTS changes. Reset is queued so it is handled in order with data.
+	 */
+	private void linesChanged() {
+		boolean bDtr = m_device.isPeerDtr();
+		boolean bRts = m_device.isPeerRts();
+		if(m_nWiring == esp8266.ESP_RESET_RTS) {
+			boolean bSwap = bDtr;
+			bDtr = bRts;
+			bRts = bSwap;
+		} else if(m_nWiring == esp8266.ESP_RESET_NONE) {
+			return;
+		}
+		//nodeMCU transistor pair: RST low only for DTR without RTS, GPIO0 low only for RTS without DTR
+		boolean bReset = bDtr && !bRts;
+		boolean bBoot = bRts && !bDtr;
+		long lNow = System.currentTimeMillis();
+		if(m_bReset && !bReset) {
+			m_lRelease = lNow;
+			m_bStrap = bBoot;
+			m_events.add(RESET);
+		} else if(!bReset && lNow - m_lRelease < RESET_RC) {
+			m_bStrap = bBoot; //RST still rising
+		}
+		m_bReset = bReset;
+	}
+
+	/**
+	 * Put device in to bootloader as if user had held GPIO0 low during reset, e.g. with ESP_RESET_NONE wiring
+	 */
+	void bootloader() {
+		m_lRelease = 0;
+		m_bStrap = true;
+		m_events.add(RESET);
+	}
+
+	private synchronized void handle(byte[] data) throws InterruptedException {
+		if(data == RESET) {
+			long lWait = m_lRelease + RESET_RC - System.currentTimeMillis();
+			if(lWait > 0)
+				Thread.sleep(lWait);
+			boot(m_bStrap);
+			return;
+		}
+		delay(data.length * 10L * 1000000000L / Math.max(1, m_host.getBaud()));
+		if(!m_bBootloader || System.currentTimeMillis() < m_lReadyTime)
+			return; //Not listening
+		if(m_nBaud == 0)
+			m_nBaud = m_host.getBaud(); //ROM auto-baud
+		if(!isLinkUp())
+			return; //Garbled
+		ByteBuffer in = ByteBuffer.wrap(drop(data));
+		while(m_rxCodec.decode(in))
+			frame(m_rxCodec.getFrame());
+	}
+
+	private void boot(boolean bootloader) {
+		m_bBootloader = bootloader;
+		m_bStub = false;
+		m_nBaud = 0;
+		m_inflater = null;
+		m_bRawWrite = false;
+		m_nReadLength = 0;
+		m_rxCodec.reset();
+		m_lReadyTime = System.currentTimeMillis() + m_nBootDelay;
+		sendRaw(ByteBuffer.wrap(BOOT_MESSAGE));
+	}
+
+	private byte[] drop(byte[] data) {
+		if(m_dDropRate <= 0)
+			return data;
+		byte[] ab = new byte[data.length];
+		int nLen = 0;
+		for(byte b: data) {
+			if(m_random.nextDouble() < m_dDropRate)
+				++m_lFaults;
+			else
+				ab[nLen++] = b;
+		}
+		return Arrays.copyOf(ab, nLen);
+	}
+
+	private void frame(ByteBuffer frame) throws InterruptedException {
+		if(m_nReadLength > 0 && frame.remaining() == 4) {
+			//Flash read acknowledgement
+			m_nReadAcked = frame.getInt(0);
+			pumpRead();
+			return;
+		}
+		if(frame.remaining() < esp8266.ESP_HEADER_SIZE || frame.get(esp8266.ESP_HEADER_MSG_TYPE) != esp8266.ESP_MSGTYPE_COMMAND)
+			return;
+		int nOp = frame.get(esp8266.ESP_HEADER_OP) & 0xff;
+		int nLen = frame.getShort(esp8266.ESP_HEADER_LEN) & 0xffff;
+		int nChecksum = frame.getInt(esp8266.ESP_HEADER_CHECKSUM);
+		if(frame.remaining() != esp8266.ESP_HEADER_SIZE + nLen) {
+			respond(nOp, 0, null, ERROR_INVALID);
+			return;
+		}
+		++m_lCommands;
+		ByteBuffer payload = frame.duplicate();
+		payload.position(esp8266.ESP_HEADER_SIZE);
+		payload = payload.slice().order(ByteOrder.LITTLE_ENDIAN);
+		switch(nOp) {
+			case esp8266.ESP_OP_SYNC:
+				for(int i = 0; i < SYNC_RESPONSES; ++i)
+					respond(nOp, 0, null, 0);
+				return;
+			case esp8266.ESP_OP_READ_REG:
+				respond(nOp, readReg(payload.getInt(0)), null, 0);
+				return;
+			case esp8266.ESP_OP_WRITE_REG:
+				writeReg(payload.getInt(0), payload.getInt(4));
+				respond(nOp, 0, null, 0);
+				return;
+			case esp8266.ESP_OP_MEM_BEGIN:
+				respond(nOp, 0, null, 0);
+				return;
+			case esp8266.ESP_OP_MEM_DATA:
+				respond(nOp, 0, null, checkData(payload, nChecksum));
+				return;
+			case esp8266.ESP_OP_MEM_END:
+				respond(nOp, 0, null, 0);
+				if(payload.getInt(0) == 0 && m_bStubSupport) {
+					m_bStub = true;
+					send(StubLoader.STUB_GREETING.duplicate());
+				}
+				return;
+			case esp8266.ESP_OP_FLASH_BEGIN:
+				beginWrite(payload.getInt(12), m_bStub ? payload.getInt(0) : romEraseSize(payload.getInt(0), payload.getInt(12)), payload.getInt(8), false);
+				respond(nOp, 0, null, 0);
+				return;
+			case esp8266.ESP_OP_FLASH_DATA:
+				respond(nOp, 0, null, flashData(payload, nChecksum));
+				return;
+			case esp8266.ESP_OP_FLASH_END:
+				if(m_inflater != null) {
+					respond(nOp, 0, null, ERROR_INVALID); //Compressed write must end with FLASH_DEFL_END
+					return;
+				}
+				m_bRawWrite = false;
+				respond(nOp, 0, null, 0);
+				if(payload.remaining() >= 4 && payload.getInt(0) == 0)
+					m_bBootloader = false; //Run application
+				return;
+			default:
+				break;
+		}
+		if(!m_bStub) {
+			respond(nOp, 0, null, ERROR_INVALID);
+			return;
+		}
+		switch(nOp) {
+			case esp8266.ESP_OP_FLASH_DEFL_BEGIN:
+				beginWrite(payload.getInt(12), payload.getInt(0), payload.getInt(8), true);
+				respond(nOp, 0, null, 0);
+				return;
+			case esp8266.ESP_OP_FLASH_DEFL_DATA:
+				respond(nOp, 0, null, flashData(payload, nChecksum));
+				return;
+			case esp8266.ESP_OP_FLASH_DEFL_END:
+				if(m_bRawWrite) {
+					respond(nOp, 0, null, ERROR_INVALID); //Uncompressed write must end with FLASH_END
+					return;
+				}
+				m_inflater = null;
+				respond(nOp, 0, null, 0);
+				if(payload.getInt(0) == 0)
+					m_bBootloader = false;
+				return;
+			case esp8266.ESP_OP_CHANGE_BAUDRATE:
+				respond(nOp, 0, null, 0); //Host changes its rate after response
+				m_nBaud = payload.getInt(0);
+				return;
+			case esp8266.ESP_OP_SPI_FLASH_MD5:
+				respond(nOp, 0, md5(payload.getInt(0), payload.getInt(4)), 0);
+				return;
+			case esp8266.ESP_OP_READ_FLASH:
+				respond(nOp, 0, null, 0);
+				beginRead(payload.getInt(0), payload.getInt(4), payload.getInt(8), payload.getInt(12));
+				return;
+			default:
+				respond(nOp, 0, null, ERROR_INVALID);
+		}
+	}
+
+	private void writeReg(int address, int value) {
+		if(address == SPI_CMD && value == SPI_CMD_RDID)
+			m_registers.put(SPI_W0, m_nFlashId); //Command completes at once
+		else
+			m_registers.put(address, value);
+	}
+
+	private int readReg(int address) {
+		Integer value = m_registers.get(address);
+		return (value == null) ? 0 : value;
+	}
+
+	private int checkData(ByteBuffer payload, int checksum) {
+		ByteBuffer data = payload.duplicate();
+		data.position(16);
+		if(payload.getInt(0) != data.remaining() || esp8266.checksum(data, esp8266.ESP_CHECKSUM_MAGIC) != (checksum & 0xff))
+			return ERROR_CHECKSUM;
+		if(m_dChecksumFaultRate > 0 && m_random.nextDouble() < m_dChecksumFaultRate) {
+			++m_lFaults;
+			return ERROR_CHECKSUM;
+		}
+		return 0;
+	}
+
+	/**
+	 * ROM erase function miscounts sectors in the first 64KB block so erases more than asked
+	 * @param size Requested erase size
+	 * @param offset Flash address
+	 * @return Quantity of bytes actually erased
+	 */
+	private static int romEraseSize(int size, int offset) {
+		int nSectors = (size + esp8266.ESP_FLASH_SECTOR - 1) / esp8266.ESP_FLASH_SECTOR;
+		int nHead = esp8266.ESP_FLASH_SECTOR_PER_BLOCK - (offset / esp8266.ESP_FLASH_SECTOR) % esp8266.ESP_FLASH_SECTOR_PER_BLOCK;
+		return (nSectors <= nHead ? 2 * nSectors : nSectors + nHead) * esp8266.ESP_FLASH_SECTOR;
+	}
+
+	private void beginWrite(int offset, int eraseSize, int blockSize, boolean deflate) throws InterruptedException {
+		m_nWriteEnd = offset;
+		m_nBlockSize = blockSize;
+		m_inflater = deflate ? new Inflater() : null;
+		m_bRawWrite = !deflate;
+		int nStart = offset / esp8266.ESP_FLASH_SECTOR;
+		int nEnd = Math.min((offset + eraseSize + esp8266.ESP_FLASH_SECTOR - 1) / esp8266.ESP_FLASH_SECTOR, m_abFlash.length / esp8266.ESP_FLASH_SECTOR);
+		for(int nSector = nStart; nSector < nEnd; ++nSector) {
+			Arrays.fill(m_abFlash, nSector * esp8266.ESP_FLASH_SECTOR, (nSector + 1) * esp8266.ESP_FLASH_SECTOR, (byte)0xff);
+			++m_lErasedSectors;
+			delay(m_nEraseTime * 1000L);
+		}
+	}
+
+	/**
+	 * Write a flash data block. As on the ROM and stub, every block with a valid checksum is taken in arrival order - the
+	 * sequence number is not checked.
+	 */
+	private int flashData(ByteBuffer payload, int checksum) throws InterruptedException {
+		if(m_nRejectBlock >= 0 && m_nRejectBlock-- == 0) {
+			++m_lFaults;
+			return ERROR_CHECKSUM;
+		}
+		int nError = checkData(payload, checksum);
+		if(nError != 0)
+			return nError;
+		ByteBuffer data = payload.duplicate();
+		data.position(16);
+		byte[] ab = new byte[data.remaining()];
+		data.get(ab);
+		if(m_inflater != null) {
+			m_inflater.setInput(ab);
+			byte[] abOut = new byte[m_nBlockSize * 4];
+			try {
+				int nOut;
+				while((nOut = m_inflater.inflate(abOut)) > 0) {
+					if(!program(m_nWriteEnd, abOut, nOut))
+						return ERROR_FAILED;
+					m_nWriteEnd += nOut;
+				}
+			} catch(DataFormatException e) {
+				return ERROR_FAILED;
+			}
+		} else {
+			if(!program(m_nWriteEnd, ab, ab.length))
+				return ERROR_FAILED;
+			m_nWriteEnd += ab.length;
+		}
+		return 0;
+	}
+
+	/**
+	 * Program flash - bits can only be cleared, as on real NOR flash
+	 */
+	private boolean program(int address, byte[] data, int length) throws InterruptedException {
+		if(address < 0 || address + length > m_abFlash.length)
+			return false;
+		for(int nIndex = 0; nIndex < length; ++nIndex)
+			m_abFlash[address + nIndex] &= data[nIndex];
+		delay(length * 1000L * m_nWriteTime / 1024);
+		return true;
+	}
+
+	private byte[] md5(int offset, int size) {
+		MessageDigest md5 = esp8266.newMd5();
+		if(offset >= 0 && offset + size <= m_abFlash.length)
+			md5.update(m_abFlash, offset, size);
+		return md5.digest();
+	}
+
+	private void beginRead(int offset, int length, int packet, int inFlight) throws InterruptedException {
+		m_nReadOffset = offset;
+		m_nReadLength = length;
+		m_nReadSent = 0;
+		m_nReadAcked = 0;
+		m_nReadPacket = packet;
+		m_nReadInFlight = inFlight;
+		m_readMd5 = esp8266.newMd5();
+		pumpRead();
+	}
+
+	private void pumpRead() throws InterruptedException {
+		while(m_nReadSent < m_nReadLength && m_nReadSent - m_nReadAcked < m_nReadPacket * m_nReadInFlight) {
+			int nLen = Math.min(m_nReadPacket, m_nReadLength - m_nReadSent);
+			int nAddress = m_nReadOffset + m_nReadSent;
+			m_readMd5.update(m_abFlash, nAddress, nLen);
+			send(ByteBuffer.wrap(m_abFlash, nAddress, nLen));
+			m_nReadSent += nLen;
+		}
+		if(m_nReadSent >= m_nReadLength && m_nReadAcked >= m_nReadLength) {
+			m_nReadLength = 0;
+			send(ByteBuffer.wrap(m_readMd5.digest()));
+		}
+	}
+
+	private void respond(int op, int value, byte[] data, int error) throws InterruptedException {
+		int nDataLen = (data == null) ? 0 : data.length;
+		ByteBuffer response = ByteBuffer.allocate(esp8266.ESP_HEADER_SIZE + nDataLen + 2).order(ByteOrder.LITTLE_ENDIAN);
+		response.put((byte)esp8266.ESP_MSGTYPE_RESPONSE).put((byte)op).putShort((short)(nDataLen + 2)).putInt(value);
+		if(data != null)
+			response.put(data);
+		response.put((byte)(error == 0 ? 0 : 1)).put((byte)error);
+		response.flip();
+		send(response);
+	}
+
+	/**
+	 * Send a SLIP frame
+	 * @param data Frame content, position to limit
+	 */
+	private void send(ByteBuffer data) {
+		sendRaw(m_txCodec.encodeFrame(data));
+	}
+
+	private void sendRaw(ByteBuffer data) {
+		try {
+			delay(data.remaining() * 10L * 1000000000L / Math.max(1, m_host.getBaud()));
+			if(isLinkUp())
+				m_device.write(data);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Simulator unable to send: %s", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return True if device and host are at the same rate and the link carries it
+	 */
+	private boolean isLinkUp() {
+		if(m_nBaud == 0)
+			return true; //Not yet detected so nothing sent at a rate
+		return m_nBaud == m_host.getBaud() && m_nBaud <= m_nMaxBaud;
+	}
+
+	/**
+	 * Account for modelled time, sleeping once at least a millisecond is owed
+	 * @param nanos Modelled duration
+	 */
+	private void delay(long nanos) throws InterruptedException {
+		if(!m_bTiming)
+			return;
+		m_lDebt += nanos;
+		if(m_lDebt < 1000000L)
+			return;
+		long lStart = System.nanoTime();
+		Thread.sleep(m_lDebt / 1000000L, (int)(m_lDebt % 1000000L));
+		m_lDebt -= System.nanoTime() - lStart;
+	}
+}
@@ -1,14 +1,306 @@
 package uk.co.riban.esp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
- * @brief	Upload firmware image to ESP
+ * @brief	Upload firmware images to ESP
  * @author waltob02
  *
  */
 public class EspUpload {
-	private String m_sImage;
-	EspUpload(String Image) {
-		m_sImage = Image;
-		System.out.println("Uploading firmware image " + m_sImage);
+	// Post-write verification modes
+	final static int VERIFY_NONE = 0; //Trust loader checksums
+	final static int VERIFY_DIGEST = 1; //Compare device MD5 of each written region
+	final static int VERIFY_READBACK = 2; //Read each written region back and compare every byte
+
+	/**
+	 * Region written but not yet verified
+	 */
+	private static class Written {
+		ByteBuffer m_image;
+		int m_nOffset;
+		esp8266.PendingDigest m_pending;
+		byte[] m_abExpected;
+	}
+
+	private esp8266 m_esp;
+	private boolean m_bCompress = true;
+	private boolean m_bDifferential = true;
+	private boolean m_bWritten = false; //True once any data has been written
+	private FlashShadow m_shadow = null;
+	private int m_nVerify = VERIFY_DIGEST;
+	private List<Written> m_written = new ArrayList<Written>(); //Regions awaiting verification
+	private ProgressListener m_progress = null;
+	private long m_lProgressBase = 0; //Image bytes completed before current write
+	private long m_lProgressTotal = 0; //Image bytes in whole upload
+
+	/**
+	 * @param esp Connected ESP8266 session
+	 */
+	EspUpload(esp8266 esp) {
+		m_esp = esp;
+	}
+
+	/**
+	 * Enable compressed upload
+	 * @param bCompress True to deflate images on host (default). Loaders without support fall back to uncompressed.
+	 */
+	void setCompress(boolean bCompress) {
+		m_bCompress = bCompress;
+	}
+
+	/**
+	 * Enable differential upload
+	 * @param bDifferential True to only write sectors whose device MD5 differs (default). Requires flasher stub.
+	 */
+	void setDifferential(boolean bDifferential) {
+		m_bDifferential = bDifferential;
+	}
+
+	/**
+	 * Use a record of what was last written to this chip to plan writes without asking device for digests
+	 * @param shadow Shadow record for connected chip or null to not use one
+	 */
+	void setShadow(FlashShadow shadow) {
+		m_shadow = shadow;
+	}
+
+	/**
+	 * Set how written data is checked
+	 * @param nVerify VERIFY_NONE, VERIFY_DIGEST (default) or VERIFY_READBACK. Verification requires flasher stub and is skipped without it.
+	 */
+	void setVerify(int nVerify) {
+		m_nVerify = nVerify;
+	}
+
+	/**
+	 * Set listener notified of upload progress in image bytes, including regions skipped because flash already matched
+	 * @param listener Listener or null for none
+	 */
+	void setProgressListener(ProgressListener listener) {
+		m_progress = listener;
+	}
+
+	/**
+	 * Upload a firmware image file
+	 * @param sImage Path of image file
+	 * @param nOffset Flash address to write image to
+	 * @return True on success
+	 */
+	boolean upload(String sImage, int nOffset) {
+		FirmwareImage image;
+		try {
+			image = FirmwareImage.open(sImage);
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Unable to load firmware image %s: %s", sImage, e.getMessage());
+			return false;
+		}
+		Log.debug(Log.PROTOCOL, "Uploading firmware image %s to 0x%06x", sImage, nOffset);
+		return upload(image.getData(), null, nOffset, image.getMd5());
+	}
+
+	/**
+	 * Upload every span of a job plan
+	 * @param plan Plan built from all images of the job
+	 * @return True on success
+	 */
+	boolean upload(FlashPlan plan) {
+		m_lProgressBase = 0;
+		m_lProgressTotal = 0;
+		for(FlashPlan.Span span: plan.getSpans())
+			m_lProgressTotal += span.m_data.remaining();
+		for(FlashPlan.Span span: plan.getSpans()) {
+			Log.debug(Log.PROTOCOL, "Uploading firmware image %s to 0x%06x", span.m_sName, span.m_nOffset);
+			if(!upload(span.m_data, null, span.m_nOffset, span.m_abMd5))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Upload a firmware image already in memory
+	 * @param image Image data, position to limit. Buffer position is not changed.
+	 * @param compressed Image compressed by esp8266.deflate() or null to compress when required
+	 * @param nOffset Flash address to write image to
+	 * @return True on success
+	 */
+	boolean upload(ByteBuffer image, ByteBuffer compressed, int nOffset) {
+		return upload(image, compressed, nOffset, null);
+	}
+
+	/**
+	 * Upload a firmware image already in memory
+	 * @param image Image data, position to limit. Buffer position is not changed.
+	 * @param compressed Image compressed by esp8266.deflate() or null to compress when required
+	 * @param nOffset Flash address to write image to
+	 * @param abMd5 MD5 of whole image, e.g. from FirmwareImage.getMd5(), or null to calculate it if required
+	 * @return True on success
+	 */
+	boolean upload(ByteBuffer image, ByteBuffer compressed, int nOffset, byte[] abMd5) {
+		long lBase = m_lProgressBase;
+		if(m_lProgressTotal < lBase + image.remaining())
+			m_lProgressTotal = lBase + image.remaining(); //Single image upload
+		List<int[]> spans = null;
+		if(m_bDifferential && m_shadow != null)
+			spans = m_shadow.findChanged(image, nOffset);
+		if(m_bDifferential && spans == null)
+			spans = new FlashDiff(m_esp).findChanged(image, nOffset);
+		if(spans == null)
+			spans = Collections.singletonList(new int[] {0, image.remaining()});
+		Log.debug(Log.PROTOCOL, "%d changed spans at 0x%06x", spans.size(), nOffset);
+		if(m_shadow != null && !spans.isEmpty()) {
+			for(int[] span: spans)
+				m_shadow.invalidate(nOffset + span[0], span[1]);
+			m_shadow.save();
+		}
+		for(int[] span: spans) {
+			m_lProgressBase = lBase + span[0];
+			if(span[0] == 0 && span[1] == image.remaining()) {
+				if(!write(image, compressed, nOffset, abMd5))
+					return false;
+				continue;
+			}
+			ByteBuffer slice = image.duplicate();
+			slice.position(image.position() + span[0]);
+			slice.limit(image.position() + span[0] + span[1]);
+			if(!write(slice, null, nOffset + span[0], null))
+				return false;
+		}
+		if(m_shadow != null)
+			m_shadow.record(image, nOffset);
+		m_lProgressBase = lBase + image.remaining();
+		if(m_progress != null)
+			m_progress.progress(m_lProgressBase, m_lProgressTotal);
+		return true;
+	}
+
+	/**
+	 * Write a region and queue its verification
+	 * @param image Region data, position to limit
+	 * @param compressed Region compressed by esp8266.deflate() or null to compress when required
+	 * @param nOffset Flash address to write region to
+	 * @param abMd5 MD5 of region or null to calculate it, e.g. for a differential slice
+	 * @return True on success
+	 */
+	private boolean write(final ByteBuffer image, ByteBuffer compressed, int nOffset, byte[] abMd5) {
+		m_bWritten = true;
+		boolean bSuccess;
+		if(m_progress != null) {
+			//Scale bytes sent, which may be compressed, to image bytes
+			m_esp.setProgressListener(new ProgressListener() {
+				@Override
+				public void progress(long done, long total) {
+					m_progress.progress(m_lProgressBase + (total == 0 ? 0 : done * image.remaining() / total), m_lProgressTotal);
+				}
+			});
+		}
+		try {
+			if(m_bCompress)
+				bSuccess = m_esp.flashDeflWrite(image, compressed, nOffset);
+			else
+				bSuccess = m_esp.flashWrite(image, nOffset);
+		} finally {
+			m_esp.setProgressListener(null);
+		}
+		if(bSuccess && m_nVerify != VERIFY_NONE && m_esp.isStub()) {
+			Written written = new Written();
+			written.m_image = image.duplicate();
+			written.m_nOffset = nOffset;
+			if(m_nVerify == VERIFY_DIGEST) {
+				//Device calculates its digest while we send the next region
+				written.m_pending = m_esp.flashMd5Deferred(nOffset, image.remaining());
+				if(abMd5 == null) {
+					MessageDigest md5 = esp8266.newMd5();
+					md5.update(image.duplicate());
+					abMd5 = md5.digest();
+				}
+				written.m_abExpected = abMd5;
+			}
+			m_written.add(written);
+		}
+		return bSuccess;
+	}
+
+	/**
+	 * Check every region written since last verify
+	 * @return True if all regions match
+	 */
+	private boolean verify() {
+		if(m_nVerify != VERIFY_NONE && !m_esp.isStub())
+			Log.debug(Log.PROTOCOL, "Verification requires flasher stub - skipped");
+		boolean bSuccess = true;
+		for(Written written: m_written) {
+			boolean bMatch;
+			if(m_nVerify == VERIFY_READBACK)
+				bMatch = readBack(written.m_image, written.m_nOffset);
+			else
+				bMatch = written.m_pending != null && m_esp.waitDigest(written.m_pending)
+					&& Arrays.equals(written.m_pending.getDigest(), written.m_abExpected);
+			if(!bMatch) {
+				Log.debug(Log.PROTOCOL, "Verify failed for 0x%06x bytes at 0x%06x", written.m_image.remaining(), written.m_nOffset);
+				if(m_shadow != null)
+					m_shadow.invalidate(written.m_nOffset, written.m_image.remaining());
+				bSuccess = false;
+			}
+		}
+		m_written.clear();
+		return bSuccess;
+	}
+
+	private boolean readBack(ByteBuffer image, int nOffset) {
+		Path path = null;
+		try {
+			path = Files.createTempFile("jesper", ".bin");
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				if(!m_esp.readFlash(nOffset, image.remaining(), channel, null, null))
+					return false;
+				MappedByteBuffer flash = channel.map(FileChannel.MapMode.READ_ONLY, 0, image.remaining());
+				return flash.equals(image);
+			}
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Unable to read back flash: %s", e.getMessage());
+			return false;
+		} finally {
+			try {
+				if(path != null)
+					Files.deleteIfExists(path);
+			} catch(IOException e) {
+				Log.debug(Log.PROTOCOL, "Unable to remove temporary file %s", path);
+			}
+		}
+	}
+
+	/**
+	 * Finish upload
+	 * @param bReboot True to reboot ESP8266
+	 * @return True on success
+	 */
+	boolean finish(boolean bReboot) {
+		if(!m_bWritten)
+			return !bReboot || m_esp.run(true); //Flash already matched so there is no write to finish
+		boolean bSuccess = verify();
+		if(!bSuccess) {
+			if(m_shadow != null)
+				m_shadow.save();
+			return false;
+		}
+		if(m_bCompress && m_esp.isDeflateSupported())
+			bSuccess = m_esp.flashDeflFinish(bReboot);
+		else
+			bSuccess = m_esp.flashFinish(bReboot);
+		if(bSuccess && m_shadow != null)
+			m_shadow.save();
+		return bSuccess;
 	}
 }
@@ -60,6 +60,17 @@ public class FirmwareConfig extends HBox {
 		return m_cmbOffset.getValue();
 	}
 	
+	/**
+	 * @return Offset as flash address or -1 if not valid
+	 */
+	int getOffsetValue() {
+		try {
+			return Integer.decode(getOffset().trim());
+		} catch(Exception e) {
+			return -1;
+		}
+	}
+	
 	void setEnabled(boolean bEnable) {
 		m_chkEnable.setSelected(bEnable);
 	}
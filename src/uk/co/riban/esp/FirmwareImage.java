@@ -0,0 +1,157 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * FirmwareImage class provides read-only memory-mapped access to a firmware image file
+ * @author Brian Walton
+ * @note Files starting with ESP_IMAGE_MAGIC have their header, segments and checksum validated. Other files (SPIFFS, init data, etc.) are treated as raw data.
+ */
+public class FirmwareImage {
+
+	// Application image header
+	final static int IMAGE_HEADER_SIZE    = 8;
+	final static int IMAGE_SEGMENTS       = 1; //uint8 Quantity of segments
+	final static int IMAGE_FLASH_MODE     = 2; //uint8 SPI flash mode
+	final static int IMAGE_FLASH_SIZE_FREQ = 3; //uint8 SPI flash size and frequency
+	final static int IMAGE_ENTRY          = 4; //uint32 Entry point
+	final static int IMAGE_SEGMENT_HEADER_SIZE = 8; //uint32 address, uint32 size
+	final static int IMAGE_MAX_SEGMENTS   = 16;
+
+	private final String m_sPath;
+	private final ByteBuffer m_data;
+	private final byte[] m_abMd5;
+	private final boolean m_bApplication;
+	private int m_nChecksum = 0;
+	private int m_nEntry = 0;
+
+	private FirmwareImage(String sPath, ByteBuffer data) throws IOException {
+		m_sPath = sPath;
+		m_data = data;
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		m_bApplication = data.remaining() > 0 && (data.get(0) & 0xff) == esp8266.ESP_IMAGE_MAGIC;
+		int nPos = 0;
+		if(m_bApplication) {
+			//Single pass: digest header bytes, digest and checksum segment data
+			if(data.remaining() < IMAGE_HEADER_SIZE)
+				throw new IOException("Image header truncated");
+			int nSegments = data.get(IMAGE_SEGMENTS) & 0xff;
+			if(nSegments == 0 || nSegments > IMAGE_MAX_SEGMENTS)
+				throw new IOException("Invalid segment count " + nSegments);
+			m_nEntry = data.getInt(IMAGE_ENTRY);
+			int nChecksum = esp8266.ESP_CHECKSUM_MAGIC;
+			nPos = IMAGE_HEADER_SIZE;
+			update(md5, 0, nPos);
+			for(int nSegment = 0; nSegment < nSegments; ++nSegment) {
+				if(nPos + IMAGE_SEGMENT_HEADER_SIZE > data.limit())
+					throw new IOException("Segment " + nSegment + " header truncated");
+				int nSize = data.getInt(nPos + 4);
+				int nStart = nPos + IMAGE_SEGMENT_HEADER_SIZE;
+				if(nSize < 0 || nSize > data.limit() - nStart)
+					throw new IOException("Segment " + nSegment + " exceeds file");
+				update(md5, nPos, nStart);
+				for(int nIndex = nStart; nIndex < nStart + nSize; ++nIndex)
+					nChecksum ^= data.get(nIndex) & 0xff;
+				update(md5, nStart, nStart + nSize);
+				nPos = nStart + nSize;
+			}
+			//Checksum is last byte of padding to 16 byte boundary
+			int nChecksumPos = (nPos | 0xf);
+			if(nChecksumPos >= data.limit())
+				throw new IOException("Checksum missing");
+			m_nChecksum = nChecksum & 0xff;
+			if((data.get(nChecksumPos) & 0xff) != m_nChecksum)
+				throw new IOException(String.format("Checksum mismatch: image 0x%02x, calculated 0x%02x", data.get(nChecksumPos) & 0xff, m_nChecksum));
+		}
+		update(md5, nPos, data.limit());
+		m_abMd5 = md5.digest();
+	}
+
+	/**
+	 * Map an image file read-only and validate it
+	 * @param sPath Path of image file
+	 * @return Image
+	 * @throws IOException if the file cannot be read or is an invalid application image
+	 */
+	static FirmwareImage open(String sPath) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(sPath), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			return new FirmwareImage(sPath, data);
+		} finally {
+			channel.close(); //Mapping remains valid after channel is closed
+		}
+	}
+
+	/**
+	 * @return Path of image file
+	 */
+	String getPath() {
+		return m_sPath;
+	}
+
+	/**
+	 * @return Read-only view of whole image, little endian. Each call returns an independent view.
+	 */
+	ByteBuffer getData() {
+		ByteBuffer data = m_data.asReadOnlyBuffer();
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		return data;
+	}
+
+	/**
+	 * @return Size of image in bytes
+	 */
+	int getSize() {
+		return m_data.limit();
+	}
+
+	/**
+	 * @return MD5 digest of whole image
+	 */
+	byte[] getMd5() {
+		return m_abMd5.clone();
+	}
+
+	/**
+	 * @return True if image starts with ESP_IMAGE_MAGIC and has been validated
+	 */
+	boolean isApplication() {
+		return m_bApplication;
+	}
+
+	/**
+	 * @return Segment checksum of application image or zero for raw image
+	 */
+	int getChecksum() {
+		return m_nChecksum;
+	}
+
+	/**
+	 * @return Entry point of application image or zero for raw image
+	 */
+	int getEntry() {
+		return m_nEntry;
+	}
+
+	private void update(MessageDigest md5, int nStart, int nEnd) {
+		ByteBuffer span = m_data.duplicate();
+		span.limit(nEnd);
+		span.position(nStart);
+		md5.update(span);
+	}
+}
@@ -0,0 +1,91 @@
+package uk.co.riban.esp;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FlashDiff class finds the parts of an image which differ from device flash by comparing MD5 digests
+ * @author Brian Walton
+ * @note Checks whole region, then each 64KB block, then each 4KB sector of mismatched blocks
+ */
+public class FlashDiff {
+
+	// Size of each coarse comparison block
+	final static int DIFF_BLOCK = esp8266.ESP_FLASH_SECTOR * esp8266.ESP_FLASH_SECTOR_PER_BLOCK;
+
+	private final esp8266 m_esp;
+	private final MessageDigest m_md5;
+	private final byte[] m_abDevice = new byte[esp8266.ESP_MD5_SIZE];
+	private boolean m_bFailed;
+
+	/**
+	 * @param esp Connected ESP8266 session running flasher stub
+	 */
+	FlashDiff(esp8266 esp) {
+		m_esp = esp;
+		try {
+			m_md5 = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Find spans of image which differ from device flash
+	 * @param image Data to be written, position to limit. Buffer position is not changed.
+	 * @param offset Flash address image is to be written to
+	 * @return List of spans as {start, length} relative to image position, empty if flash already matches or null if device cannot be compared
+	 * @note Spans start on sector boundaries so they may be erased and written independently
+	 */
+	List<int[]> findChanged(ByteBuffer image, int offset) {
+		m_bFailed = false;
+		List<int[]> spans = new ArrayList<int[]>();
+		int nSize = image.remaining();
+		if(!m_esp.isStub() || offset % esp8266.ESP_FLASH_SECTOR != 0)
+			return null;
+		if(matches(image, 0, nSize, offset))
+			return spans;
+		for(int nBlock = 0; nBlock < nSize && !m_bFailed; nBlock += DIFF_BLOCK) {
+			int nBlockLen = Math.min(DIFF_BLOCK, nSize - nBlock);
+			if(matches(image, nBlock, nBlockLen, offset + nBlock))
+				continue;
+			for(int nSector = nBlock; nSector < nBlock + nBlockLen && !m_bFailed; nSector += esp8266.ESP_FLASH_SECTOR) {
+				int nSectorLen = Math.min(esp8266.ESP_FLASH_SECTOR, nSize - nSector);
+				if(matches(image, nSector, nSectorLen, offset + nSector))
+					continue;
+				int[] last = spans.isEmpty() ? null : spans.get(spans.size() - 1);
+				if(last != null && last[0] + last[1] == nSector)
+					last[1] += nSectorLen; //Extend adjacent span
+				else
+					spans.add(new int[] {nSector, nSectorLen});
+			}
+		}
+		if(m_bFailed)
+			return null;
+		return spans;
+	}
+
+	/**
+	 * Compare host and device digests of a span
+	 * @param image Image data
+	 * @param start Start of span relative to image position
+	 * @param length Length of span
+	 * @param address Flash address of span
+	 * @return True if digests match. False on mismatch or failure (sets m_bFailed).
+	 */
+	private boolean matches(ByteBuffer image, int start, int length, int address) {
+		if(!m_esp.flashMd5(address, length, m_abDevice)) {
+			m_bFailed = true;
+			return false;
+		}
+		ByteBuffer span = image.duplicate();
+		span.position(image.position() + start);
+		span.limit(image.position() + start + length);
+		m_md5.update(span);
+		return Arrays.equals(m_md5.digest(), m_abDevice);
+	}
+}
@@ -0,0 +1,295 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * FlashFarm class uploads the same set of firmware images to many serial ports concurrently
+ * @author Brian Walton
+ * @note Images are loaded and compressed once per job and shared read-only between port sessions.
+ * Each port runs as an EspSession pipeline so a failure at any step skips the rest and still closes the port.
+ */
+public class FlashFarm {
+
+	private final FlashPlan m_plan = new FlashPlan();
+	private final List<ByteBuffer> m_compressed = new ArrayList<ByteBuffer>();
+	private StubLoader m_stub = null;
+	private String m_sShadowDir = null;
+	private String m_sCaptureDir = null;
+	private int m_nMaxBaud = esp8266.ESP_STUB_BAUDS[0]; //Fallback finds the fastest rate each link carries
+	private int m_nVerify = EspUpload.VERIFY_DIGEST;
+	private boolean m_bCompress = true;
+	private boolean m_bDifferential = true;
+	private boolean m_bReboot = true;
+	private ProgressListener m_progress = null;
+	private long m_lJobSize = 0; //Image bytes written to each port
+	private long[] m_alDone = new long[0]; //Image bytes completed on each port of current run
+	private PortProfiles m_profiles = null;
+
+	/**
+	 * Add an image to the job, loading it once
+	 * @param sPath Path of image file
+	 * @param nOffset Flash address to write image to
+	 * @return True on success
+	 */
+	boolean addImage(String sPath, int nOffset) {
+		try {
+			m_plan.add(nOffset, FirmwareImage.open(sPath));
+			return true;
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Unable to load firmware image %s: %s", sPath, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Plan the job and, if compression is enabled, compress each span once. Call after adding all images and setting options and before run().
+	 * @throws IllegalArgumentException if images overlap
+	 */
+	void prepare() {
+		m_plan.build();
+		m_compressed.clear();
+		m_lJobSize = 0;
+		for(FlashPlan.Span span: m_plan.getSpans()) {
+			m_compressed.add(m_bCompress ? esp8266.deflate(span.m_data).asReadOnlyBuffer() : null);
+			m_lJobSize += span.m_data.remaining();
+		}
+	}
+
+	/**
+	 * @param stub Flasher stub to run on each device or null to use ROM loader
+	 */
+	void setStub(StubLoader stub) {
+		m_stub = stub;
+	}
+
+	/**
+	 * @param sDir Shadow record directory or null to not use shadow records
+	 */
+	void setShadowDir(String sDir) {
+		m_sShadowDir = sDir;
+	}
+
+	/**
+	 * @param sDir Directory to write a wire capture of each port to or null to not capture
+	 */
+	void setCaptureDir(String sDir) {
+		m_sCaptureDir = sDir;
+	}
+
+	/**
+	 * @param baud Highest baud rate to negotiate with each device (default fastest of esp8266.ESP_STUB_BAUDS)
+	 */
+	void setMaxBaud(int baud) {
+		m_nMaxBaud = baud;
+	}
+
+	/**
+	 * @param nVerify Post-write verification mode, EspUpload.VERIFY_*
+	 */
+	void setVerify(int nVerify) {
+		m_nVerify = nVerify;
+	}
+
+	/**
+	 * @param bCompress True to write compressed data where the loader supports it (default)
+	 */
+	void setCompress(boolean bCompress) {
+		m_bCompress = bCompress;
+	}
+
+	/**
+	 * @param bDifferential True to only write sectors whose content differs (default)
+	 */
+	void setDifferential(boolean bDifferential) {
+		m_bDifferential = bDifferential;
+	}
+
+	/**
+	 * @param bReboot True to run the new firmware on each device once written (default)
+	 */
+	void setReboot(boolean bReboot) {
+		m_bReboot = bReboot;
+	}
+
+	/**
+	 * @param listener Listener notified of image bytes completed across all ports or null for none. Called from port threads.
+	 */
+	void setProgressListener(ProgressListener listener) {
+		m_progress = listener;
+	}
+
+	/**
+	 * @param profiles Remembered port reset profiles to use and update or null to not use
+	 * @note Profiles are updated from several threads but not saved - caller saves after run()
+	 */
+	void setProfiles(PortProfiles profiles) {
+		m_profiles = profiles;
+	}
+
+	/**
+	 * Upload images to each port concurrently
+	 * @param asPorts Names of serial ports
+	 * @return Map of port name to success, in port order
+	 * @note Blocks until every port has finished. A failure on one port does not affect others.
+	 * Interrupting the calling thread cancels every port, waits for each to close its port then returns with the interrupt flag set.
+	 */
+	Map<String, Boolean> run(String[] asPorts) {
+		Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+		if(asPorts.length == 0)
+			return results;
+		synchronized(this) {
+			m_alDone = new long[asPorts.length];
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(asPorts.length); //Uploads block so each port needs its own thread
+		Map<String, CompletableFuture<Boolean>> futures = new LinkedHashMap<String, CompletableFuture<Boolean>>();
+		for(int nPort = 0; nPort < asPorts.length; ++nPort)
+			futures.put(asPorts[nPort], uploadPort(asPorts[nPort], nPort, executor));
+		boolean bCancelled = false;
+		try {
+			CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).get();
+		} catch(InterruptedException e) {
+			Log.debug(Log.PROTOCOL, "Flash farm cancelled");
+			bCancelled = true;
+			executor.shutdownNow(); //Interrupts each port, which stops at its next wait and closes its port
+			try {
+				executor.awaitTermination(esp8266.ESP_SLIP_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e1) {
+				//Already cancelling
+			}
+		} catch(ExecutionException e) {
+			//Port pipelines do not fail - each completes with its result
+		}
+		executor.shutdown();
+		for(Map.Entry<String, CompletableFuture<Boolean>> entry: futures.entrySet())
+			results.put(entry.getKey(), entry.getValue().getNow(false));
+		if(bCancelled)
+			Thread.currentThread().interrupt();
+		return results;
+	}
+
+	/**
+	 * Record progress of one port and notify listener of progress across all ports
+	 * @param nPort Index of port in current run
+	 * @param lDone Image bytes completed on port
+	 */
+	private synchronized void progress(int nPort, long lDone) {
+		if(m_progress == null)
+			return;
+		m_alDone[nPort] = Math.min(lDone, m_lJobSize);
+		long lTotal = 0;
+		for(long l: m_alDone)
+			lTotal += l;
+		m_progress.progress(lTotal, m_lJobSize * m_alDone.length);
+	}
+
+	/**
+	 * Start uploading all images to one port: open, connect, run stub, negotiate baud, write then close
+	 * @param sPort Name of serial port
+	 * @param nPort Index of port in current run
+	 * @param executor Executor running port sessions
+	 * @return Future true on success. Never completes exceptionally - failures are logged and complete with false.
+	 */
+	private CompletableFuture<Boolean> uploadPort(final String sPort, final int nPort, Executor executor) {
+		return EspSession.open(sPort, executor).thenCompose(new Function<EspSession, CompletionStage<Boolean>>() {
+			@Override
+			public CompletionStage<Boolean> apply(final EspSession session) {
+				final esp8266 esp = session.getEsp();
+				esp.startCapture(WireCapture.create(m_sCaptureDir, sPort));
+				if(m_profiles != null)
+					m_profiles.apply(sPort, esp);
+				return session.connect().thenCompose(new Function<Void, CompletionStage<Boolean>>() {
+					@Override
+					public CompletionStage<Boolean> apply(Void connected) {
+						if(m_profiles != null)
+							m_profiles.update(sPort, esp);
+						return (m_stub == null) ? CompletableFuture.completedFuture(false) : session.loadStub(m_stub);
+					}
+				}).thenCompose(new Function<Boolean, CompletionStage<Integer>>() {
+					@Override
+					public CompletionStage<Integer> apply(Boolean stub) {
+						return session.negotiateBaud(m_nMaxBaud);
+					}
+				}).thenCompose(new Function<Integer, CompletionStage<Boolean>>() {
+					@Override
+					public CompletionStage<Boolean> apply(Integer baud) {
+						return session.submit(new Callable<Boolean>() {
+							@Override
+							public Boolean call() throws Exception {
+								return write(sPort, nPort, esp);
+							}
+						});
+					}
+				}).handle(new BiFunction<Boolean, Throwable, Boolean>() {
+					@Override
+					public Boolean apply(Boolean success, Throwable e) {
+						if(e != null)
+							Log.debug(Log.PROTOCOL, "Upload to %s failed: %s", sPort, (e.getCause() == null) ? e : e.getCause().getMessage());
+						return e == null && success;
+					}
+				}).thenCompose(new Function<Boolean, CompletionStage<Boolean>>() {
+					@Override
+					public CompletionStage<Boolean> apply(final Boolean success) {
+						return session.close().handle(new BiFunction<Void, Throwable, Boolean>() {
+							@Override
+							public Boolean apply(Void closed, Throwable e) {
+								return success;
+							}
+						});
+					}
+				});
+			}
+		}).exceptionally(new Function<Throwable, Boolean>() {
+			@Override
+			public Boolean apply(Throwable e) {
+				Log.debug(Log.PROTOCOL, "Upload to %s failed: %s", sPort, (e.getCause() == null) ? e : e.getCause().getMessage());
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Write all images to a connected device
+	 * @param sPort Name of serial port
+	 * @param nPort Index of port in current run
+	 * @param esp Connected device, running stub if available
+	 * @return True on success
+	 */
+	private boolean write(String sPort, final int nPort, esp8266 esp) throws EspException {
+		EspUpload upload = new EspUpload(esp);
+		upload.setVerify(m_nVerify);
+		upload.setCompress(m_bCompress);
+		upload.setDifferential(m_bDifferential);
+		upload.setProgressListener(new ProgressListener() {
+			@Override
+			public void progress(long done, long total) {
+				FlashFarm.this.progress(nPort, done);
+			}
+		});
+		if(m_bDifferential && m_sShadowDir != null)
+			upload.setShadow(FlashShadow.open(m_sShadowDir, esp.getChipId()));
+		List<FlashPlan.Span> spans = m_plan.getSpans();
+		for(int nSpan = 0; nSpan < spans.size(); ++nSpan) {
+			FlashPlan.Span span = spans.get(nSpan);
+			ByteBuffer compressed = m_compressed.get(nSpan);
+			Log.debug(Log.PROTOCOL, "Uploading firmware image %s to 0x%06x on %s", span.m_sName, span.m_nOffset, sPort);
+			if(!upload.upload(span.m_data.asReadOnlyBuffer(), compressed == null ? null : compressed.duplicate(), span.m_nOffset, span.m_abMd5))
+				return false;
+		}
+		return upload.finish(m_bReboot);
+	}
+}
@@ -0,0 +1,180 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * FlashPlan class combines all images of a job in to a list of spans, each erased and written by one begin/end sequence
+ * @author Brian Walton
+ * @note Overlapping images are rejected. Where images share a sector, that sector is written as one small span, with any gap filled
+ * with 0xff, so one image's erase cannot destroy its neighbour. The rest of each image is written straight from its mapping.
+ */
+public class FlashPlan {
+
+	/**
+	 * Contiguous region of flash written with a single begin/end sequence
+	 */
+	static class Span {
+		final int m_nOffset;
+		final ByteBuffer m_data;
+		final String m_sName;
+		final byte[] m_abMd5; //MD5 of whole span or null if not known
+
+		Span(int nOffset, ByteBuffer data, String sName, byte[] abMd5) {
+			m_nOffset = nOffset;
+			m_data = data;
+			m_sName = sName;
+			m_abMd5 = abMd5;
+		}
+
+		int getEnd() {
+			return m_nOffset + m_data.remaining();
+		}
+	}
+
+	private final List<Span> m_regions = new ArrayList<Span>();
+	private final List<Span> m_spans = new ArrayList<Span>();
+
+	/**
+	 * Add an image to the job, keeping its digest for verification
+	 * @param nOffset Flash address to write image to
+	 * @param image Firmware image
+	 * @throws IOException if a raw image is placed at the boot address, where the ROM expects an application image
+	 */
+	void add(int nOffset, FirmwareImage image) throws IOException {
+		if(image.isApplication())
+			Log.debug(Log.PROTOCOL, "%s: application image, entry 0x%08x, checksum 0x%02x", image.getPath(), image.getEntry(), image.getChecksum());
+		else if(nOffset == 0)
+			throw new IOException(image.getPath() + " is not an application image and cannot be written to boot address 0x000000");
+		m_regions.add(new Span(nOffset, image.getData(), image.getPath(), image.getMd5()));
+	}
+
+	/**
+	 * Build the spans from the added images
+	 * @throws IllegalArgumentException if images overlap
+	 */
+	void build() {
+		m_spans.clear();
+		List<Span> regions = new ArrayList<Span>(m_regions);
+		Collections.sort(regions, new Comparator<Span>() {
+			@Override
+			public int compare(Span a, Span b) {
+				return Integer.compare(a.m_nOffset, b.m_nOffset);
+			}
+		});
+		List<Span> group = new ArrayList<Span>();
+		for(Span region: regions) {
+			if(region.m_data.remaining() == 0)
+				continue;
+			if(!group.isEmpty()) {
+				Span last = group.get(group.size() - 1);
+				if(region.m_nOffset < last.getEnd())
+					throw new IllegalArgumentException(String.format("%s at 0x%06x overlaps %s ending at 0x%06x", region.m_sName, region.m_nOffset, last.m_sName, last.getEnd()));
+				if(region.m_nOffset >= roundUp(last.getEnd(), esp8266.ESP_FLASH_SECTOR)) {
+					//Gap contains whole sectors which must not be erased
+					split(group);
+					group.clear();
+				} else if(region.m_nOffset > last.getEnd()) {
+					Log.debug(Log.PROTOCOL, "Filling 0x%x byte gap before %s with 0xff", region.m_nOffset - last.getEnd(), region.m_sName);
+				}
+			}
+			group.add(region);
+		}
+		if(!group.isEmpty())
+			split(group);
+		Log.debug(Log.PROTOCOL, "Flash plan: %d images in %d spans", m_regions.size(), m_spans.size());
+	}
+
+	/**
+	 * @return Spans in address order, each written with one begin/end sequence
+	 */
+	List<Span> getSpans() {
+		return m_spans;
+	}
+
+	/**
+	 * Add spans for a group of regions which share sectors
+	 * @param group Regions in address order, none overlapping, each starting in the sector where the previous one ends
+	 * @note Each shared sector is copied in to a span of its own. Other spans are views of the regions' data, so only shared sectors
+	 * are held on the heap. Spans start and end on sector boundaries where they meet, so no span's erase reaches another's data.
+	 */
+	private void split(List<Span> group) {
+		if(group.size() == 1) {
+			m_spans.add(group.get(0));
+			return;
+		}
+		int nStart = group.get(0).m_nOffset;
+		int nEnd = group.get(group.size() - 1).getEnd();
+		List<int[]> shared = new ArrayList<int[]>(); //{start, end} of runs of shared sectors
+		for(int nIndex = 1; nIndex < group.size(); ++nIndex) {
+			int nSector = group.get(nIndex - 1).getEnd() / esp8266.ESP_FLASH_SECTOR * esp8266.ESP_FLASH_SECTOR;
+			int nSharedStart = Math.max(nSector, nStart);
+			int nSharedEnd = Math.min(nSector + esp8266.ESP_FLASH_SECTOR, nEnd);
+			if(!shared.isEmpty() && shared.get(shared.size() - 1)[1] >= nSharedStart)
+				shared.get(shared.size() - 1)[1] = nSharedEnd; //Small region lies within one sector
+			else
+				shared.add(new int[] {nSharedStart, nSharedEnd});
+		}
+		int nPos = nStart;
+		for(int[] run: shared) {
+			if(run[0] > nPos)
+				m_spans.add(view(group, nPos, run[0]));
+			m_spans.add(copy(group, run[0], run[1]));
+			nPos = run[1];
+		}
+		if(nPos < nEnd)
+			m_spans.add(view(group, nPos, nEnd));
+	}
+
+	/**
+	 * Get part of one region without copying
+	 * @param group Regions in address order
+	 * @param nStart Flash address of start of part
+	 * @param nEnd Flash address of end of part, within the same region as nStart
+	 * @return Span viewing region's data
+	 */
+	private static Span view(List<Span> group, int nStart, int nEnd) {
+		for(Span region: group) {
+			if(nStart >= region.m_nOffset && nEnd <= region.getEnd()) {
+				ByteBuffer data = region.m_data.duplicate();
+				data.position(data.position() + nStart - region.m_nOffset);
+				data.limit(data.position() + nEnd - nStart);
+				return new Span(nStart, data.slice(), region.m_sName, null); //Digest is of whole region
+			}
+		}
+		throw new IllegalStateException(String.format("No single region holds 0x%06x-0x%06x", nStart, nEnd));
+	}
+
+	/**
+	 * Copy the parts of regions within an address range, filling any gap with 0xff
+	 * @param group Regions in address order
+	 * @param nStart Flash address of start of range
+	 * @param nEnd Flash address of end of range
+	 * @return Span holding a copy of the range
+	 */
+	private static Span copy(List<Span> group, int nStart, int nEnd) {
+		byte[] abData = new byte[nEnd - nStart];
+		Arrays.fill(abData, (byte)0xff);
+		StringBuilder sName = new StringBuilder();
+		for(Span region: group) {
+			int nFrom = Math.max(nStart, region.m_nOffset);
+			int nTo = Math.min(nEnd, region.getEnd());
+			if(nFrom >= nTo)
+				continue;
+			ByteBuffer data = region.m_data.duplicate();
+			data.position(data.position() + nFrom - region.m_nOffset);
+			data.get(abData, nFrom - nStart, nTo - nFrom);
+			sName.append(sName.length() == 0 ? "" : "+").append(region.m_sName);
+		}
+		return new Span(nStart, ByteBuffer.wrap(abData), sName.toString(), null);
+	}
+
+	private static int roundUp(int value, int unit) {
+		return (value + unit - 1) / unit * unit;
+	}
+}
@@ -0,0 +1,164 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * FlashShadow class records MD5 digests of each flash sector last successfully written to a chip
+ * @author Brian Walton
+ * @note One small binary file per chip ID in the shadow directory, replaced atomically on save
+ */
+public class FlashShadow {
+
+	// Default directory holding shadow files
+	final static String DEFAULT_DIR = "shadow";
+
+	// File header
+	final static int SHADOW_MAGIC   = 0x4448534a; //"JSHD"
+	final static int SHADOW_VERSION = 1;
+	final static int SHADOW_ENTRY_SIZE = 4 + esp8266.ESP_MD5_SIZE; //Sector address + digest
+
+	private final Path m_path;
+	private final Map<Integer, byte[]> m_sectors = new TreeMap<Integer, byte[]>();
+	private final MessageDigest m_md5;
+
+	private FlashShadow(Path path) {
+		m_path = path;
+		try {
+			m_md5 = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Open shadow record for a chip, loading any existing record
+	 * @param sDir Directory holding shadow files
+	 * @param chipId Chip ID from esp8266.getChipId()
+	 * @return Shadow record (empty if chip not seen before or record unreadable)
+	 */
+	static FlashShadow open(String sDir, int chipId) {
+		FlashShadow shadow = new FlashShadow(Paths.get(sDir, String.format("%08x.shd", chipId)));
+		if(!Files.isReadable(shadow.m_path))
+			return shadow;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(shadow.m_path));
+			if(buffer.remaining() < 12 || buffer.getInt() != SHADOW_MAGIC || buffer.getInt() != SHADOW_VERSION)
+				throw new IOException("Bad header");
+			int nCount = buffer.getInt();
+			if(buffer.remaining() != nCount * SHADOW_ENTRY_SIZE)
+				throw new IOException("Bad length");
+			for(int nEntry = 0; nEntry < nCount; ++nEntry) {
+				int nAddress = buffer.getInt();
+				byte[] digest = new byte[esp8266.ESP_MD5_SIZE];
+				buffer.get(digest);
+				shadow.m_sectors.put(nAddress, digest);
+			}
+		} catch(IOException e) {
+			Log.debug(Log.GENERAL, "Ignoring invalid shadow file %s", shadow.m_path);
+			shadow.m_sectors.clear();
+		}
+		return shadow;
+	}
+
+	/**
+	 * Find spans of image which differ from the recorded content of the chip
+	 * @param image Data to be written, position to limit. Buffer position is not changed.
+	 * @param offset Flash address image is to be written to
+	 * @return List of sector aligned spans as {start, length} relative to image position or null if any sector has no record
+	 */
+	List<int[]> findChanged(ByteBuffer image, int offset) {
+		if(offset % esp8266.ESP_FLASH_SECTOR != 0)
+			return null;
+		List<int[]> spans = new ArrayList<int[]>();
+		int nSize = image.remaining();
+		for(int nSector = 0; nSector < nSize; nSector += esp8266.ESP_FLASH_SECTOR) {
+			byte[] recorded = m_sectors.get(offset + nSector);
+			if(recorded == null)
+				return null;
+			int nSectorLen = Math.min(esp8266.ESP_FLASH_SECTOR, nSize - nSector);
+			if(Arrays.equals(recorded, digest(image, nSector, nSectorLen)))
+				continue;
+			int[] last = spans.isEmpty() ? null : spans.get(spans.size() - 1);
+			if(last != null && last[0] + last[1] == nSector)
+				last[1] += nSectorLen;
+			else
+				spans.add(new int[] {nSector, nSectorLen});
+		}
+		return spans;
+	}
+
+	/**
+	 * Forget sectors about to be written so an interrupted write cannot leave a stale record
+	 * @param offset Flash address of start of region
+	 * @param length Quantity of bytes in region
+	 */
+	void invalidate(int offset, int length) {
+		int nStart = offset - offset % esp8266.ESP_FLASH_SECTOR;
+		for(int nSector = nStart; nSector < offset + length; nSector += esp8266.ESP_FLASH_SECTOR)
+			m_sectors.remove(nSector);
+	}
+
+	/**
+	 * Record digests of each sector of an image which has been successfully written
+	 * @param image Data written, position to limit. Buffer position is not changed.
+	 * @param offset Flash address image was written to
+	 */
+	void record(ByteBuffer image, int offset) {
+		if(offset % esp8266.ESP_FLASH_SECTOR != 0)
+			return;
+		int nSize = image.remaining();
+		for(int nSector = 0; nSector < nSize; nSector += esp8266.ESP_FLASH_SECTOR)
+			m_sectors.put(offset + nSector, digest(image, nSector, Math.min(esp8266.ESP_FLASH_SECTOR, nSize - nSector)));
+	}
+
+	/**
+	 * Write record to disk, replacing previous record atomically
+	 * @return True on success
+	 */
+	boolean save() {
+		ByteBuffer buffer = ByteBuffer.allocate(12 + m_sectors.size() * SHADOW_ENTRY_SIZE);
+		buffer.putInt(SHADOW_MAGIC).putInt(SHADOW_VERSION).putInt(m_sectors.size());
+		for(Map.Entry<Integer, byte[]> entry: m_sectors.entrySet())
+			buffer.putInt(entry.getKey()).put(entry.getValue());
+		buffer.flip();
+		Path temp = m_path.resolveSibling(m_path.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(m_path.toAbsolutePath().getParent());
+			FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			Files.move(temp, m_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			Log.debug(Log.GENERAL, "Unable to save shadow file %s", m_path);
+			return false;
+		}
+		return true;
+	}
+
+	private byte[] digest(ByteBuffer image, int start, int length) {
+		ByteBuffer span = image.duplicate();
+		span.position(image.position() + start);
+		span.limit(image.position() + start + length);
+		m_md5.update(span);
+		return m_md5.digest();
+	}
+}
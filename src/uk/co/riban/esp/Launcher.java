@@ -0,0 +1,18 @@
+package uk.co.riban.esp;
+
+import java.util.Arrays;
+
+/**
+ * @brief	Application entry point selecting headless or graphical mode
+ * @author	Brian Walton
+ * @note	Must not reference JavaFX. Main extends Application so the JVM needs the JavaFX runtime just to load it, which a headless
+ * 			station may not have - --batch is routed to Cli before Main is touched.
+ */
+public class Launcher {
+
+	public static void main(String[] args) {
+		if(args.length > 0 && args[0].equals("--batch"))
+			System.exit(Cli.run(Arrays.copyOfRange(args, 1, args.length)));
+		Main.main(args);
+	}
+}
@@ -0,0 +1,484 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * LinkMetrics class counts traffic, errors and response latency of a link to an ESP8266
+ * @author Brian Walton
+ * @note Counters are LongAdders so recording is lock free and cheap enough to leave on. Each session records in to its
+ * own instance and the shared total. Sessions are published through JMX and may be written to a snapshot file periodically.
+ */
+public class LinkMetrics implements LinkMetricsMXBean {
+
+	// JMX domain and type of registered metrics
+	final static String JMX_NAME = "uk.co.riban.esp:type=LinkMetrics,name=";
+
+	// Error code in response status reporting bad data checksum
+	final static int ERROR_CHECKSUM = 0x07;
+
+	// Latency histogram buckets - bucket n counts responses taking 2^n to 2^(n+1) microseconds, last bucket counts the rest
+	final static int LATENCY_BUCKETS = 25;
+
+	/**
+	 * Response latency histogram of one operation
+	 */
+	static class Histogram {
+		final LongAdder[] m_buckets = new LongAdder[LATENCY_BUCKETS];
+		final LongAdder m_count = new LongAdder();
+		final LongAdder m_sum = new LongAdder(); //Nanoseconds
+		final LongAccumulator m_max = new LongAccumulator(new LongBinaryOperator() {
+			@Override
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+		final LongAdder m_timeouts = new LongAdder();
+
+		Histogram() {
+			for(int nBucket = 0; nBucket < LATENCY_BUCKETS; ++nBucket)
+				m_buckets[nBucket] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			long lMicros = nanos / 1000;
+			int nBucket = (lMicros < 2) ? 0 : 63 - Long.numberOfLeadingZeros(lMicros);
+			m_buckets[Math.min(nBucket, LATENCY_BUCKETS - 1)].increment();
+			m_count.increment();
+			m_sum.add(nanos);
+			m_max.accumulate(nanos);
+		}
+
+		/**
+		 * @param fraction Fraction of responses, e.g. 0.99
+		 * @return Upper bound (ms) of bucket holding that fraction of responses, limited to maximum
+		 */
+		double percentile(double fraction) {
+			long lTarget = (long)Math.ceil(m_count.sum() * fraction);
+			long lCount = 0;
+			for(int nBucket = 0; nBucket < LATENCY_BUCKETS; ++nBucket) {
+				lCount += m_buckets[nBucket].sum();
+				if(lCount >= lTarget)
+					return Math.min(2L << nBucket, m_max.get() / 1000) / 1000.0;
+			}
+			return m_max.get() / 1000000.0;
+		}
+
+		/**
+		 * @return One line summary, e.g. "count=10 mean=1.20ms p50<=1.02ms p99<=2.05ms max=1.90ms timeouts=0"
+		 */
+		String summary() {
+			long lCount = m_count.sum();
+			double dMean = (lCount == 0) ? 0 : m_sum.sum() / 1000000.0 / lCount;
+			return String.format("count=%d mean=%.2fms p50<=%.2fms p90<=%.2fms p99<=%.2fms max=%.2fms timeouts=%d",
+					lCount, dMean, percentile(0.5), percentile(0.9), percentile(0.99), m_max.get() / 1000000.0, m_timeouts.sum());
+		}
+
+		void reset() {
+			for(LongAdder bucket: m_buckets)
+				bucket.reset();
+			m_count.reset();
+			m_sum.reset();
+			m_max.reset();
+			m_timeouts.reset();
+		}
+	}
+
+	// Metrics of all links
+	final static LinkMetrics TOTAL = new LinkMetrics("total", null);
+
+	// Registered metrics by name
+	private final static Map<String, LinkMetrics> REGISTERED = new ConcurrentHashMap<String, LinkMetrics>();
+
+	static {
+		TOTAL.registerMBean();
+	}
+
+	private static ScheduledExecutorService m_snapshotTimer = null;
+
+	private final String m_sName;
+	private final LinkMetrics m_parent; //Also updated by each record, e.g. TOTAL
+	private final LongAdder m_bytesSent = new LongAdder();
+	private final LongAdder m_rawBytesSent = new LongAdder(); //Unescaped frame content
+	private final LongAdder m_framesSent = new LongAdder();
+	private final LongAdder m_bytesReceived = new LongAdder();
+	private final LongAdder m_flashBytes = new LongAdder();
+	private final LongAdder m_flashNanos = new LongAdder();
+	private final LongAdder m_blocksSent = new LongAdder();
+	private final LongAdder m_blocksRetried = new LongAdder();
+	private final LongAdder m_checksumFailures = new LongAdder();
+	private final LongAdder m_rejected = new LongAdder();
+	private final LongAdder m_deadLetters = new LongAdder();
+	private final LongAdder m_lost = new LongAdder();
+	private final LongAdder m_dropped = new LongAdder();
+	private final LongAdder m_timeouts = new LongAdder();
+	private final AtomicReferenceArray<Histogram> m_latency = new AtomicReferenceArray<Histogram>(256); //Indexed by operation code
+
+	/**
+	 * @param sName Name of link, e.g. port name
+	 * @param parent Metrics also updated by this instance, e.g. TOTAL, or null for none
+	 */
+	LinkMetrics(String sName, LinkMetrics parent) {
+		m_sName = sName;
+		m_parent = parent;
+	}
+
+	/**
+	 * Publish through JMX and include in snapshots, replacing metrics of an earlier link with the same name
+	 */
+	void register() {
+		REGISTERED.put(m_sName, this);
+		unregisterMBean();
+		registerMBean();
+	}
+
+	/**
+	 * Remove from JMX, e.g. when link is closed
+	 * @note Last values stay in snapshots until a link with the same name is registered
+	 */
+	void unregister() {
+		if(REGISTERED.get(m_sName) == this)
+			unregisterMBean();
+	}
+
+	private void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(JMX_NAME + ObjectName.quote(m_sName)));
+		} catch(JMException e) {
+			Log.debug(Log.PROTOCOL, "Unable to register metrics of %s: %s", m_sName, e.getMessage());
+		}
+	}
+
+	private void unregisterMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(JMX_NAME + ObjectName.quote(m_sName));
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch(JMException e) {
+			Log.debug(Log.PROTOCOL, "Unable to unregister metrics of %s: %s", m_sName, e.getMessage());
+		}
+	}
+
+	/**
+	 * Record a frame written to link
+	 * @param encoded Bytes written
+	 * @param raw Bytes of frame content before SLIP encoding
+	 */
+	void sent(int encoded, int raw) {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent) {
+			metrics.m_bytesSent.add(encoded);
+			metrics.m_rawBytesSent.add(raw);
+			metrics.m_framesSent.increment();
+		}
+	}
+
+	/**
+	 * @param bytes Bytes received from link
+	 */
+	void received(int bytes) {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent)
+			metrics.m_bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Record a response matched to its command
+	 * @param operation Operation code
+	 * @param nanos Time from command being queued to response
+	 * @param status Response status byte, zero for success
+	 * @param error Response error byte
+	 */
+	void response(int operation, long nanos, int status, int error) {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent) {
+			metrics.histogram(operation).record(nanos);
+			if(status == 0)
+				continue;
+			if(error == ERROR_CHECKSUM)
+				metrics.m_checksumFailures.increment();
+			else
+				metrics.m_rejected.increment();
+		}
+	}
+
+	/**
+	 * @param operation Operation code of command which timed out or -1 for raw read
+	 */
+	void timeout(int operation) {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent) {
+			metrics.m_timeouts.increment();
+			if(operation >= 0)
+				metrics.histogram(operation).m_timeouts.increment();
+		}
+	}
+
+	void deadLetter() {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent)
+			metrics.m_deadLetters.increment();
+	}
+
+	void lost() {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent)
+			metrics.m_lost.increment();
+	}
+
+	void dropped() {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent)
+			metrics.m_dropped.increment();
+	}
+
+	/**
+	 * @param retry True if block is a resend
+	 */
+	void blockSent(boolean retry) {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent) {
+			metrics.m_blocksSent.increment();
+			if(retry)
+				metrics.m_blocksRetried.increment();
+		}
+	}
+
+	/**
+	 * Record a completed flash write
+	 * @param bytes Image bytes written, before compression
+	 * @param nanos Time taken to erase, send and acknowledge all blocks
+	 */
+	void flashWritten(long bytes, long nanos) {
+		for(LinkMetrics metrics = this; metrics != null; metrics = metrics.m_parent) {
+			metrics.m_flashBytes.add(bytes);
+			metrics.m_flashNanos.add(nanos);
+		}
+	}
+
+	private Histogram histogram(int operation) {
+		Histogram histogram = m_latency.get(operation & 0xff);
+		if(histogram == null) {
+			m_latency.compareAndSet(operation & 0xff, null, new Histogram());
+			histogram = m_latency.get(operation & 0xff);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @param operation Operation code
+	 * @return Name of operation, e.g. "FLASH_DATA"
+	 */
+	static String getOperationName(int operation) {
+		switch(operation) {
+			case esp8266.ESP_OP_FLASH_BEGIN: return "FLASH_BEGIN";
+			case esp8266.ESP_OP_FLASH_DATA: return "FLASH_DATA";
+			case esp8266.ESP_OP_FLASH_END: return "FLASH_END";
+			case esp8266.ESP_OP_MEM_BEGIN: return "MEM_BEGIN";
+			case esp8266.ESP_OP_MEM_END: return "MEM_END";
+			case esp8266.ESP_OP_MEM_DATA: return "MEM_DATA";
+			case esp8266.ESP_OP_SYNC: return "SYNC";
+			case esp8266.ESP_OP_WRITE_REG: return "WRITE_REG";
+			case esp8266.ESP_OP_READ_REG: return "READ_REG";
+			case esp8266.ESP_OP_CHANGE_BAUDRATE: return "CHANGE_BAUDRATE";
+			case esp8266.ESP_OP_FLASH_DEFL_BEGIN: return "FLASH_DEFL_BEGIN";
+			case esp8266.ESP_OP_FLASH_DEFL_DATA: return "FLASH_DEFL_DATA";
+			case esp8266.ESP_OP_FLASH_DEFL_END: return "FLASH_DEFL_END";
+			case esp8266.ESP_OP_SPI_FLASH_MD5: return "SPI_FLASH_MD5";
+			case esp8266.ESP_OP_READ_FLASH: return "READ_FLASH";
+			default: return String.format("0x%02x", operation);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return m_sName;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return m_bytesSent.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return m_bytesReceived.sum();
+	}
+
+	@Override
+	public long getFramesSent() {
+		return m_framesSent.sum();
+	}
+
+	@Override
+	public double getEscapeRatio() {
+		long lRaw = m_rawBytesSent.sum();
+		if(lRaw == 0)
+			return 0;
+		return (double)(m_bytesSent.sum() - lRaw - 2 * m_framesSent.sum()) / lRaw; //Each frame has two END delimiters
+	}
+
+	@Override
+	public double getFlashBytesPerSecond() {
+		long lNanos = m_flashNanos.sum();
+		return (lNanos == 0) ? 0 : m_flashBytes.sum() * 1e9 / lNanos;
+	}
+
+	@Override
+	public long getBlocksSent() {
+		return m_blocksSent.sum();
+	}
+
+	@Override
+	public long getBlocksRetried() {
+		return m_blocksRetried.sum();
+	}
+
+	@Override
+	public long getChecksumFailures() {
+		return m_checksumFailures.sum();
+	}
+
+	@Override
+	public long getRejectedResponses() {
+		return m_rejected.sum();
+	}
+
+	@Override
+	public long getDeadLetters() {
+		return m_deadLetters.sum();
+	}
+
+	@Override
+	public long getLostResponses() {
+		return m_lost.sum();
+	}
+
+	@Override
+	public long getDroppedFrames() {
+		return m_dropped.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return m_timeouts.sum();
+	}
+
+	@Override
+	public Map<String, String> getLatency() {
+		Map<String, String> latency = new TreeMap<String, String>();
+		for(int nOperation = 0; nOperation < m_latency.length(); ++nOperation) {
+			Histogram histogram = m_latency.get(nOperation);
+			if(histogram != null)
+				latency.put(getOperationName(nOperation), histogram.summary());
+		}
+		return latency;
+	}
+
+	@Override
+	public void reset() {
+		LongAdder[] counters = {m_bytesSent, m_rawBytesSent, m_framesSent, m_bytesReceived, m_flashBytes, m_flashNanos,
+				m_blocksSent, m_blocksRetried, m_checksumFailures, m_rejected, m_deadLetters, m_lost, m_dropped, m_timeouts};
+		for(LongAdder counter: counters)
+			counter.reset();
+		for(int nOperation = 0; nOperation < m_latency.length(); ++nOperation) {
+			Histogram histogram = m_latency.get(nOperation);
+			if(histogram != null)
+				histogram.reset();
+		}
+	}
+
+	/**
+	 * Add metrics to a properties set as "NAME.metric=value" entries
+	 * @param props Properties to fill
+	 */
+	void snapshot(Properties props) {
+		String sPrefix = m_sName + ".";
+		props.setProperty(sPrefix + "bytes_sent", Long.toString(getBytesSent()));
+		props.setProperty(sPrefix + "bytes_received", Long.toString(getBytesReceived()));
+		props.setProperty(sPrefix + "frames_sent", Long.toString(getFramesSent()));
+		props.setProperty(sPrefix + "escape_ratio", String.format("%.4f", getEscapeRatio()));
+		props.setProperty(sPrefix + "flash_bytes_per_second", String.format("%.0f", getFlashBytesPerSecond()));
+		props.setProperty(sPrefix + "blocks_sent", Long.toString(getBlocksSent()));
+		props.setProperty(sPrefix + "blocks_retried", Long.toString(getBlocksRetried()));
+		props.setProperty(sPrefix + "checksum_failures", Long.toString(getChecksumFailures()));
+		props.setProperty(sPrefix + "rejected", Long.toString(getRejectedResponses()));
+		props.setProperty(sPrefix + "dead_letters", Long.toString(getDeadLetters()));
+		props.setProperty(sPrefix + "lost_responses", Long.toString(getLostResponses()));
+		props.setProperty(sPrefix + "dropped_frames", Long.toString(getDroppedFrames()));
+		props.setProperty(sPrefix + "timeouts", Long.toString(getTimeouts()));
+		for(Map.Entry<String, String> entry: getLatency().entrySet())
+			props.setProperty(sPrefix + "latency." + entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Write total and each registered link's metrics to a properties file, replacing it atomically
+	 * @param sFile Path of snapshot file
+	 * @return True on success
+	 */
+	static boolean writeSnapshot(String sFile) {
+		Properties props = new Properties();
+		TOTAL.snapshot(props);
+		for(LinkMetrics metrics: REGISTERED.values())
+			metrics.snapshot(props);
+		Path path = Paths.get(sFile).toAbsolutePath();
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try {
+			try(OutputStream out = Files.newOutputStream(temp)) {
+				props.store(out, "Jesper link metrics");
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Unable to write metrics snapshot %s: %s", sFile, e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write snapshot file periodically in the background until stopSnapshots() is called
+	 * @param sFile Path of snapshot file
+	 * @param period Time between snapshots in milliseconds
+	 */
+	static synchronized void startSnapshots(final String sFile, long period) {
+		stopSnapshots();
+		m_snapshotTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "MetricsSnapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		m_snapshotTimer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				writeSnapshot(sFile);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop periodic snapshots
+	 */
+	static synchronized void stopSnapshots() {
+		if(m_snapshotTimer == null)
+			return;
+		m_snapshotTimer.shutdownNow();
+		m_snapshotTimer = null;
+	}
+}
@@ -0,0 +1,91 @@
+package uk.co.riban.esp;
+
+import java.util.Map;
+
+/**
+ * LinkMetricsMXBean interface is the JMX view of LinkMetrics
+ * @author Brian Walton
+ * @note Registered as uk.co.riban.esp:type=LinkMetrics,name=PORT for each open link and name=total for all links
+ */
+public interface LinkMetricsMXBean {
+
+	/**
+	 * @return Port name or "total"
+	 */
+	String getName();
+
+	/**
+	 * @return Bytes written to link, after SLIP encoding
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return Bytes received from link, before SLIP decoding
+	 */
+	long getBytesReceived();
+
+	/**
+	 * @return SLIP frames written to link
+	 */
+	long getFramesSent();
+
+	/**
+	 * @return Escape bytes added per byte of unencoded frame content
+	 */
+	double getEscapeRatio();
+
+	/**
+	 * @return Image bytes written to flash per second of flash write time, including erase and compression
+	 */
+	double getFlashBytesPerSecond();
+
+	/**
+	 * @return Flash data blocks sent, including resends
+	 */
+	long getBlocksSent();
+
+	/**
+	 * @return Flash data blocks resent after rejection or lost response
+	 */
+	long getBlocksRetried();
+
+	/**
+	 * @return Responses reporting a checksum failure
+	 */
+	long getChecksumFailures();
+
+	/**
+	 * @return Responses reporting any other failure
+	 */
+	long getRejectedResponses();
+
+	/**
+	 * @return Frames received which matched no pending command and were discarded
+	 */
+	long getDeadLetters();
+
+	/**
+	 * @return Commands whose response was lost because a later command was answered first
+	 */
+	long getLostResponses();
+
+	/**
+	 * @return Frames dropped because the receive queue was full
+	 */
+	long getDroppedFrames();
+
+	/**
+	 * @return Commands and raw reads which timed out awaiting a response
+	 */
+	long getTimeouts();
+
+	/**
+	 * @return Response latency summary for each operation seen, keyed by operation name
+	 */
+	Map<String, String> getLatency();
+
+	/**
+	 * Clear all counters and histograms
+	 */
+	void reset();
+}
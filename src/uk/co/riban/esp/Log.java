@@ -0,0 +1,393 @@
+package uk.co.riban.esp;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @brief	Levelled logging shared by the user interface and headless engine
+ * @author	Brian Walton
+ * @note	Kept separate from Main so the engine does not load JavaFX classes.
+ * 			Each category has its own level. A disabled statement costs one array read and compare - fixed argument
+ * 			overloads avoid the varargs array. Primitive arguments are boxed before the check so guard such calls on hot
+ * 			paths with isEnabled(). Enabled messages are queued in a lock free ring buffer and formatted and written by a
+ * 			background thread so serial event and upload threads never block on output. The writer parks while the ring
+ * 			is empty and is unparked by the next message. Arguments are formatted later so must not be changed after
+ * 			logging, e.g. pass values rather than reused buffers.
+ * 			If the ring is full the message is dropped and counted.
+ */
+public class Log {
+
+	// Levels
+	final static int OFF   = 0;
+	final static int ERROR = 1;
+	final static int WARN  = 2;
+	final static int INFO  = 3;
+	final static int DEBUG = 4;
+	final static int TRACE = 5;
+
+	// Categories
+	final static int GENERAL  = 0;
+	final static int PROTOCOL = 1; //Serial link, SLIP and ESP8266 commands
+	final static int TERMINAL = 2; //Terminal tabs
+	final static int UI       = 3; //User interface
+	final static int CATEGORIES = 4;
+
+	final static String[] LEVEL_NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG", "TRACE"};
+	final static String[] CATEGORY_NAMES = {"general", "protocol", "terminal", "ui"};
+
+	// Quantity of messages that may be queued - must be power of 2
+	final static int RING_SIZE = 4096;
+
+	// Argument count marking a message written as is, without formatting
+	private final static int RAW = -1;
+
+	/**
+	 * Slot in ring buffer
+	 */
+	private static class Entry {
+		volatile long m_lSequence = -1; //Sequence number once filled
+		long m_lTime;
+		int m_nLevel;
+		int m_nCategory;
+		String m_sThread;
+		String m_sFormat;
+		int m_nArgs;
+		Object m_arg0;
+		Object m_arg1;
+		Object m_arg2;
+		Object[] m_args; //More than 3 arguments
+	}
+
+	private static volatile int[] m_anLevel = {INFO, INFO, INFO, INFO}; //Replaced, never changed, so readers need no lock
+	private final static Entry[] m_ring = new Entry[RING_SIZE];
+	private final static AtomicLong m_lTail = new AtomicLong(0); //Next sequence to claim
+	private static volatile long m_lHead = 0; //Next sequence to write
+	private final static AtomicLong m_lDropped = new AtomicLong(0);
+	private static volatile PrintStream m_out = System.err;
+	private static Thread m_writer;
+	private static volatile boolean m_bParked = false; //True while writer is, or is about to be, parked on an empty ring
+	private final static StringBuilder m_line = new StringBuilder(256); //Reused by writer
+	private final static Formatter m_formatter = new Formatter(m_line);
+	private final static TimeZone m_zone = TimeZone.getDefault();
+
+	static {
+		for(int nSlot = 0; nSlot < RING_SIZE; ++nSlot)
+			m_ring[nSlot] = new Entry();
+		m_writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					if(drain())
+						continue;
+					m_bParked = true;
+					if(m_lTail.get() == m_lHead)
+						LockSupport.park(); //Producer unparks when it queues a message
+					m_bParked = false;
+				}
+			}
+		}, "LogWriter");
+		m_writer.setDaemon(true);
+		m_writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "LogFlush"));
+	}
+
+	/**
+	 * @brief Check whether messages would be logged, e.g. before building expensive arguments
+	 * @param category Log category
+	 * @param level Message level
+	 * @return True if enabled
+	 */
+	public static boolean isEnabled(int category, int level) {
+		return level <= m_anLevel[category];
+	}
+
+	/**
+	 * @brief Set level of a category
+	 * @param category Log category
+	 * @param level Highest level logged, OFF to disable
+	 */
+	public static synchronized void setLevel(int category, int level) {
+		int[] anLevel = m_anLevel.clone();
+		anLevel[category] = level;
+		m_anLevel = anLevel;
+	}
+
+	/**
+	 * @param category Log category
+	 * @return Highest level logged
+	 */
+	public static int getLevel(int category) {
+		return m_anLevel[category];
+	}
+
+	/**
+	 * @brief Enable or disable debug output in all categories
+	 * @param debug True for DEBUG level, false for INFO
+	 */
+	public static synchronized void setDebug(boolean debug) {
+		int[] anLevel = new int[CATEGORIES];
+		Arrays.fill(anLevel, debug ? DEBUG : INFO);
+		m_anLevel = anLevel;
+	}
+
+	/**
+	 * @brief Set levels from a specification, e.g. "protocol=trace,ui=off"
+	 * @param sSpec Comma separated category=level pairs. Names are not case sensitive.
+	 * @return False if any pair was not understood. Other pairs are still applied.
+	 */
+	public static boolean configure(String sSpec) {
+		boolean bValid = true;
+		for(String sPair: sSpec.split(",")) {
+			if(sPair.trim().isEmpty())
+				continue;
+			String[] asPair = sPair.split("=", 2);
+			int nCategory = indexOf(CATEGORY_NAMES, asPair[0]);
+			int nLevel = (asPair.length == 2) ? indexOf(LEVEL_NAMES, asPair[1]) : -1;
+			if(nCategory < 0 || nLevel < 0)
+				bValid = false;
+			else
+				setLevel(nCategory, nLevel);
+		}
+		return bValid;
+	}
+
+	private static int indexOf(String[] asNames, String sName) {
+		for(int nIndex = 0; nIndex < asNames.length; ++nIndex)
+			if(asNames[nIndex].equalsIgnoreCase(sName.trim()))
+				return nIndex;
+		return -1;
+	}
+
+	/**
+	 * @return True if any category logs debug output
+	 */
+	public static boolean isDebug() {
+		for(int nLevel: m_anLevel)
+			if(nLevel >= DEBUG)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @brief Set where messages are written
+	 * @param out Output stream, default System.err
+	 */
+	public static void setOutput(PrintStream out) {
+		m_out = out;
+	}
+
+	/**
+	 * @return Quantity of messages dropped because the ring was full
+	 */
+	public static long getDropped() {
+		return m_lDropped.get();
+	}
+
+	/**
+	 * @brief Prints debug output with newline if debug enabled
+	 * @param sDebug String to print
+	 */
+	public static void debug(String sDebug) {
+		if(DEBUG <= m_anLevel[GENERAL])
+			queue(GENERAL, DEBUG, sDebug, RAW, null, null, null, null);
+	}
+
+	/**
+	 * @brief Prints debug output if debug enabled
+	 * @param format Formated string to print
+	 * @param arg0 Argument for formated output
+	 */
+	public static void debug(String format, Object arg0) {
+		if(DEBUG <= m_anLevel[GENERAL])
+			queue(GENERAL, DEBUG, format, 1, arg0, null, null, null);
+	}
+
+	public static void debug(String format, Object arg0, Object arg1) {
+		if(DEBUG <= m_anLevel[GENERAL])
+			queue(GENERAL, DEBUG, format, 2, arg0, arg1, null, null);
+	}
+
+	public static void debug(String format, Object arg0, Object arg1, Object arg2) {
+		if(DEBUG <= m_anLevel[GENERAL])
+			queue(GENERAL, DEBUG, format, 3, arg0, arg1, arg2, null);
+	}
+
+	/**
+	 * @brief Prints debug output if debug enabled
+	 * @param format Formated string to print
+	 * @param args Arguments for formated output
+	 */
+	public static void debug(String format, Object ... args) {
+		if(DEBUG <= m_anLevel[GENERAL])
+			queue(GENERAL, DEBUG, format, args.length, null, null, null, args);
+	}
+
+	/**
+	 * @brief Log debug message in a category
+	 * @param category Log category
+	 * @param sMessage Message, written as is
+	 */
+	public static void debug(int category, String sMessage) {
+		if(DEBUG <= m_anLevel[category])
+			queue(category, DEBUG, sMessage, RAW, null, null, null, null);
+	}
+
+	public static void debug(int category, String format, Object arg0) {
+		if(DEBUG <= m_anLevel[category])
+			queue(category, DEBUG, format, 1, arg0, null, null, null);
+	}
+
+	public static void debug(int category, String format, Object arg0, Object arg1) {
+		if(DEBUG <= m_anLevel[category])
+			queue(category, DEBUG, format, 2, arg0, arg1, null, null);
+	}
+
+	public static void debug(int category, String format, Object arg0, Object arg1, Object arg2) {
+		if(DEBUG <= m_anLevel[category])
+			queue(category, DEBUG, format, 3, arg0, arg1, arg2, null);
+	}
+
+	public static void debug(int category, String format, Object ... args) {
+		if(DEBUG <= m_anLevel[category])
+			queue(category, DEBUG, format, args.length, null, null, null, args);
+	}
+
+	/**
+	 * @brief Log message at any level
+	 * @param category Log category
+	 * @param level Message level
+	 * @param sMessage Message, written as is
+	 */
+	public static void log(int category, int level, String sMessage) {
+		if(level <= m_anLevel[category])
+			queue(category, level, sMessage, RAW, null, null, null, null);
+	}
+
+	public static void log(int category, int level, String format, Object arg0) {
+		if(level <= m_anLevel[category])
+			queue(category, level, format, 1, arg0, null, null, null);
+	}
+
+	public static void log(int category, int level, String format, Object arg0, Object arg1) {
+		if(level <= m_anLevel[category])
+			queue(category, level, format, 2, arg0, arg1, null, null);
+	}
+
+	public static void log(int category, int level, String format, Object arg0, Object arg1, Object arg2) {
+		if(level <= m_anLevel[category])
+			queue(category, level, format, 3, arg0, arg1, arg2, null);
+	}
+
+	public static void log(int category, int level, String format, Object ... args) {
+		if(level <= m_anLevel[category])
+			queue(category, level, format, args.length, null, null, null, args);
+	}
+
+	/**
+	 * @brief Claim a ring slot and fill it. Many threads may call this at once.
+	 */
+	private static void queue(int category, int level, String format, int count, Object arg0, Object arg1, Object arg2, Object[] args) {
+		long lSequence;
+		do {
+			lSequence = m_lTail.get();
+			if(lSequence - m_lHead >= RING_SIZE) {
+				m_lDropped.incrementAndGet();
+				return;
+			}
+		} while(!m_lTail.compareAndSet(lSequence, lSequence + 1));
+		Entry entry = m_ring[(int)lSequence & (RING_SIZE - 1)];
+		entry.m_lTime = System.currentTimeMillis();
+		entry.m_nLevel = level;
+		entry.m_nCategory = category;
+		entry.m_sThread = Thread.currentThread().getName();
+		entry.m_sFormat = format;
+		entry.m_nArgs = count;
+		entry.m_arg0 = arg0;
+		entry.m_arg1 = arg1;
+		entry.m_arg2 = arg2;
+		entry.m_args = args;
+		entry.m_lSequence = lSequence; //Publish to writer
+		if(m_bParked)
+			LockSupport.unpark(m_writer); //Writer checks tail after setting m_bParked so cannot miss this message
+	}
+
+	/**
+	 * @brief Write queued messages. Only called by one thread at a time.
+	 * @return True if any message was written
+	 */
+	private static synchronized boolean drain() {
+		PrintStream out = m_out;
+		long lDropped = m_lDropped.getAndSet(0);
+		if(lDropped > 0)
+			out.printf("%d log messages dropped - ring full\n", lDropped);
+		boolean bWritten = false;
+		while(true) {
+			long lHead = m_lHead;
+			Entry entry = m_ring[(int)lHead & (RING_SIZE - 1)];
+			if(entry.m_lSequence != lHead)
+				break; //Not yet filled
+			format(entry);
+			out.println(m_line);
+			entry.m_sFormat = null;
+			entry.m_arg0 = entry.m_arg1 = entry.m_arg2 = null;
+			entry.m_args = null;
+			m_lHead = lHead + 1; //Release slot to producers
+			bWritten = true;
+		}
+		if(bWritten)
+			out.flush();
+		return bWritten;
+	}
+
+	/**
+	 * @brief Write all queued messages now, e.g. before exit
+	 */
+	public static void flush() {
+		drain();
+	}
+
+	/**
+	 * @brief Build line "HH:mm:ss.SSS LEVEL category [thread] message" in m_line
+	 */
+	private static void format(Entry entry) {
+		StringBuilder line = m_line;
+		line.setLength(0);
+		int nMs = (int)Math.floorMod(entry.m_lTime + m_zone.getOffset(entry.m_lTime), 86400000L);
+		appendDigits(line, nMs / 3600000, 2).append(':');
+		appendDigits(line, nMs / 60000 % 60, 2).append(':');
+		appendDigits(line, nMs / 1000 % 60, 2).append('.');
+		appendDigits(line, nMs % 1000, 3).append(' ');
+		line.append(LEVEL_NAMES[entry.m_nLevel]).append(' ').append(CATEGORY_NAMES[entry.m_nCategory]);
+		line.append(" [").append(entry.m_sThread).append("] ");
+		int nStart = line.length();
+		try {
+			switch(entry.m_nArgs) {
+				case RAW: line.append(entry.m_sFormat); break;
+				case 1: m_formatter.format(entry.m_sFormat, entry.m_arg0); break;
+				case 2: m_formatter.format(entry.m_sFormat, entry.m_arg0, entry.m_arg1); break;
+				case 3: m_formatter.format(entry.m_sFormat, entry.m_arg0, entry.m_arg1, entry.m_arg2); break;
+				default: m_formatter.format(entry.m_sFormat, entry.m_args);
+			}
+		} catch(RuntimeException e) {
+			line.setLength(nStart);
+			line.append(entry.m_sFormat).append(" (bad log format: ").append(e.getMessage()).append(')');
+		}
+		if(line.length() > nStart && line.charAt(line.length() - 1) == '\n')
+			line.setLength(line.length() - 1);
+	}
+
+	private static StringBuilder appendDigits(StringBuilder line, int value, int digits) {
+		for(int nDivisor = (digits == 3) ? 100 : 10; nDivisor > 1 && value < nDivisor; nDivisor /= 10)
+			line.append('0');
+		return line.append(value);
+	}
+}
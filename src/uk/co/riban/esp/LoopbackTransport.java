@@ -0,0 +1,140 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * LoopbackTransport class is one end of an in-memory link, e.g. between esp8266 and a device simulator
+ * @author Brian Walton
+ * @note Data written to one end is passed to the other end's receiver on the writer's thread so the link runs at memory speed.
+ * Data written while the other end is closed is dropped.
+ */
+public class LoopbackTransport implements Transport {
+
+	private final String m_sName;
+	private LoopbackTransport m_peer = null;
+	private volatile Receiver m_receiver = null;
+	private volatile Runnable m_lineListener = null;
+	private volatile boolean m_bDtr = false;
+	private volatile boolean m_bRts = false;
+	private volatile int m_nBaud = 0;
+	private volatile long m_lDropped = 0;
+
+	private LoopbackTransport(String sName) {
+		m_sName = sName;
+	}
+
+	/**
+	 * Create a connected pair of endpoints
+	 * @param sName Name of link
+	 * @return Two endpoints, e.g. host end [0] and device end [1]
+	 */
+	static LoopbackTransport[] createPair(String sName) {
+		LoopbackTransport host = new LoopbackTransport(sName);
+		LoopbackTransport device = new LoopbackTransport(sName + " (device)");
+		host.m_peer = device;
+		device.m_peer = host;
+		return new LoopbackTransport[] {host, device};
+	}
+
+	@Override
+	public void open(int baud, Receiver receiver) {
+		m_nBaud = baud;
+		m_receiver = receiver;
+	}
+
+	@Override
+	public void close() {
+		m_receiver = null;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return m_receiver != null;
+	}
+
+	@Override
+	public void setBaud(int baud) {
+		m_nBaud = baud;
+	}
+
+	/**
+	 * @return Current baud rate of this end
+	 */
+	int getBaud() {
+		return m_nBaud;
+	}
+
+	@Override
+	public boolean hasBaudControl() {
+		return true;
+	}
+
+	@Override
+	public boolean hasLineControl() {
+		return true;
+	}
+
+	@Override
+	public void setDtr(boolean dtr) {
+		m_bDtr = dtr;
+		m_peer.linesChanged();
+	}
+
+	@Override
+	public void setRts(boolean rts) {
+		m_bRts = rts;
+		m_peer.linesChanged();
+	}
+
+	/**
+	 * @return True if other end asserts DTR
+	 */
+	boolean isPeerDtr() {
+		return m_peer.m_bDtr;
+	}
+
+	/**
+	 * @return True if other end asserts RTS
+	 */
+	boolean isPeerRts() {
+		return m_peer.m_bRts;
+	}
+
+	/**
+	 * @param listener Called on other end's thread when it changes DTR or RTS, or null for none
+	 */
+	void setLineListener(Runnable listener) {
+		m_lineListener = listener;
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		Receiver receiver = m_peer.m_receiver;
+		if(receiver == null) {
+			m_lDropped += data.remaining();
+			data.position(data.limit());
+			return;
+		}
+		receiver.receive(data.duplicate());
+		data.position(data.limit());
+	}
+
+	/**
+	 * @return Quantity of bytes written while other end was closed
+	 */
+	long getDropped() {
+		return m_lDropped;
+	}
+
+	@Override
+	public String getName() {
+		return m_sName;
+	}
+
+	private void linesChanged() {
+		Runnable listener = m_lineListener;
+		if(listener != null)
+			listener.run();
+	}
+}
@@ -13,13 +13,12 @@ import javafx.stage.Stage;
 
 
 public class Main extends Application {
-	static public final Integer[] BAUDS = {1200, 2400, 4800, 9600, 19200, 38400, 57600, 74880,  115200, 128000};
+	static public final Integer[] BAUDS = {1200, 2400, 4800, 9600, 19200, 38400, 57600, 74880,  115200, 128000, 230400, 460800, 921600, 1500000, 2000000};
     final static Integer[] WORD_LENGTHS = {5, 6, 7, 8};
     final static String[] PARITY_VALUES = {"none", "odd", "even", "mark", "space"};
     final static String[] STOP_BIT_VALUES = {"1", "1.5", "2"};
 
 	static public final String[] ADDRESSES = {"0x00000", "0x01000", "0x10000", "01FC000"};
-	static boolean bDebug = false;
     static Stage pStage = null;
     static Scene pScene = null;
     static String sCss;
@@ -36,7 +35,7 @@ public class Main extends Application {
 	    	props.load(in);
 	    	in.close();
 	    } catch (Exception e) {
-	    	Main.debug("Unable to load configuration file");
+	    	Log.debug(Log.UI, "Unable to load configuration file");
 	    }
 		try {
 			pStage = primaryStage;
@@ -71,7 +70,7 @@ public class Main extends Application {
 				((TerminalTab) tab).closePort();
 			}
 		}
-		props.setProperty("debug", Main.bDebug?"true":"false");
+		props.setProperty("debug", Log.isDebug()?"true":"false");
     	props.setProperty("animate", Main.bAnimate?"true":"false");
     	if(pStage != null)
     		props.setProperty("layout", String.format("%d,%d,%d,%d", (int)pStage.getX(), (int)pStage.getY(), (int)pStage.getWidth(), (int)pStage.getHeight()));
@@ -81,37 +80,15 @@ public class Main extends Application {
 	    	Main.props.store(out, "Jesper configuration - overwritten when jesper closes");
 	    	out.close();
 	    } catch (Exception e) {
-	    	Main.debug("Unable to save configuration file: " + e.getMessage());
+	    	Log.debug(Log.UI, "Unable to save configuration file: %s", e.getMessage());
 	    }
 	}
 	
-	public static void main(String[] args) {
-		launch(args);
-	}
-   
 	/**
-	 * @brief Prints debug output with newline if debug enabled
-	 * @param sDebug String to print
+	 * Start the graphical interface. Use Launcher as entry point to also allow headless --batch mode.
 	 */
-	public static void debug(String sDebug) {
-		if(bDebug) {
-			System.err.println(sDebug);
-		}
-			
-	}
-
-	/**
-	 * @brief Prints debug output if debug enabled
-	 * @param format Formated string to print
-	 * @param args Arguments for formated output
-	 */
-	public static void debug(String format, Object ... args) {
-		if(bDebug) {
-			String sOutput = format;
-			if(!sOutput.endsWith("\n"))
-				sOutput += "\n";
-			System.err.printf(sOutput, args);
-		}
+	public static void main(String[] args) {
+		launch(args);
 	}
 
 }
\ No newline at end of file
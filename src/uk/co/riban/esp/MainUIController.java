@@ -1,33 +1,91 @@
 package uk.co.riban.esp;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.event.ActionEvent;
 import javafx.event.Event;
+import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.scene.Node;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ComboBox;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.layout.VBox;
 import jssc.SerialPort;
-import jssc.SerialPortException;
 import jssc.SerialPortList;
 
 public class MainUIController {
+	// Minimum interval between progress updates sent to UI (ms)
+	final static int UI_REFRESH_MS = 100;
+
 	//FXML element definitions
 	@FXML public TabPane tabpaneMain;
 	@FXML private ComboBox<String> cmbPort;
 	@FXML private ComboBox<Integer> cmbBaud;
 	@FXML private Button btnUpload;
 	@FXML private ProgressBar progbarUpload;
+	@FXML private Label lblUploadStatus;
 	@FXML private CheckMenuItem menuDebug;
     @FXML private CheckMenuItem menuAnimate;
     @FXML private VBox vboxFirmwares;
+
+    private SerialTask m_task = null; //Serial port task running in background, null when idle
+    //Runs serial port tasks one at a time so they never contend for a port
+    private final ExecutorService m_worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "SerialWorker");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+    /**
+     * Background serial port operation. Cancel interrupts the worker thread which ends the operation at its next wait.
+     * Progress is published to the UI at most every UI_REFRESH_MS.
+     */
+    private abstract class SerialTask extends Task<Boolean> implements ProgressListener {
+    	private long m_lStart = 0;
+    	private long m_lLastUpdate = 0;
+    	volatile String m_sResult = null; //Message shown to user on completion
+
+    	@Override
+    	public void progress(long done, long total) {
+    		long lNow = System.currentTimeMillis();
+    		if(m_lStart == 0)
+    			m_lStart = lNow;
+    		if(done < total && lNow - m_lLastUpdate < UI_REFRESH_MS)
+    			return;
+    		m_lLastUpdate = lNow;
+    		updateProgress(done, total);
+    		long lElapsed = lNow - m_lStart;
+    		if(lElapsed <= 0 || done <= 0)
+    			return;
+    		double dRate = done * 1000.0 / lElapsed; //Bytes per second
+    		long lEta = (long)((total - done) / dRate);
+    		updateMessage(String.format("%.1f KB/s  %d:%02d left", dRate / 1024, lEta / 60, lEta % 60));
+    	}
+    }
         
 	/**	FXML initialisation */
 	public void initialize(){
@@ -37,11 +95,12 @@ public class MainUIController {
 		//Get persistent data
 		if(Main.props.getProperty("debug", "false").equals("true")) {
 			menuDebug.setSelected(true);
-			Main.bDebug = true;
+			Log.setDebug(true);
 		} else {
 			menuDebug.setSelected(false);
-			Main.bDebug = false;
+			Log.setDebug(false);
 		}
+		Log.configure(Main.props.getProperty("log", "")); //Per category levels, e.g. log=protocol=trace
 		if(Main.props.getProperty("animate", "true").equals("true")) {
     		menuAnimate.setSelected(true);
     		Main.bAnimate = true;
@@ -148,38 +207,241 @@ public class MainUIController {
 	}
 	    
     @FXML void onBtnUploadAction(ActionEvent event) {
+    	if(m_task != null) {
+    		m_task.cancel();
+    		return;
+    	}
     	//Validate serial port still valid, e.g. not USB interface disconnected during runtime
-    	String sPort = cmbPort.getValue();
+    	final String sPort = cmbPort.getValue();
     	if(validatePort(sPort) != sPort) {
     		Toast.show("Serial port is not available");
     		return;
     	}
-    	SerialPort serialport = new SerialPort(sPort);
+    	final FlashPlan plan = buildPlan();
+    	if(plan == null)
+    		return;
+    	final int nBaud = cmbBaud.getValue();
+    	startTask(sPort, new SerialTask() {
+			@Override
+			protected Boolean call() throws Exception {
+				esp8266 esp = new esp8266(new SerialPort(sPort), esp8266.ESP_ROM_BAUD);
+				esp.startCapture(WireCapture.create(Main.props.getProperty("capture_dir", ""), sPort)); //Empty for no capture
+				try {
+					PortProfiles profiles = new PortProfiles(Main.props);
+					profiles.apply(sPort, esp);
+					if(!esp.connect()) {
+						m_sResult = "Failed to connect to ESP8266";
+						return false;
+					}
+					profiles.update(sPort, esp);
+					StubLoader stub = StubLoader.load(Main.props.getProperty("stub", StubLoader.DEFAULT_FILE));
+					if(stub != null && !esp.loadStub(stub))
+						esp.connect(); //Fall back to ROM loader
+					if(esp.negotiateBaud(nBaud) < 0) {
+						m_sResult = "Lost connection while changing baud rate";
+						return false;
+					}
+					EspUpload upload = new EspUpload(esp);
+					upload.setProgressListener(this);
+					try {
+						upload.setShadow(FlashShadow.open(Main.props.getProperty("shadow_dir", FlashShadow.DEFAULT_DIR), esp.getChipId()));
+					} catch(Exception e) {
+						Log.debug(Log.UI, "Unable to read chip ID - shadow record not used");
+					}
+					boolean bSuccess = upload.upload(plan) && upload.finish(true);
+					m_sResult = bSuccess ? "Upload complete" : "Upload failed";
+					return bSuccess;
+				} finally {
+					if(esp.close())
+						Log.debug(Log.UI, "Closed upload port");
+				}
+			}
+		});
+    }
 
+    /**
+     * Run a serial port task in the background, suspending terminals using the port until it finishes
+     * @param sPort Serial port used by task or null if task only uses ports no terminal has open
+     * @param task Task to run
+     * @return True if started, false if another task is running
+     */
+    private boolean startTask(String sPort, final SerialTask task) {
+    	if(m_task != null) {
+    		Toast.show("Serial port is busy");
+    		return false;
+    	}
+    	m_task = task;
     	suspendTerminals(sPort);
-    	//Open serial port
-    	try {
-    		esp8266 esp = new esp8266(serialport, cmbBaud.getValue());
-    		for(Node node: vboxFirmwares.getChildren()) {
-    			FirmwareConfig fw = (FirmwareConfig)node;
-    			if(fw.isEnabled()) {
-    				Main.debug("Uploading firmware: %s to %s", fw.getPath(), fw.getOffset());
-    			}
+    	progbarUpload.progressProperty().bind(task.progressProperty());
+    	lblUploadStatus.textProperty().bind(task.messageProperty());
+    	btnUpload.setText("Cancel");
+    	EventHandler<WorkerStateEvent> onDone = new EventHandler<WorkerStateEvent>() {
+			@Override
+			public void handle(WorkerStateEvent event) {
+				progbarUpload.progressProperty().unbind();
+				lblUploadStatus.textProperty().unbind();
+				btnUpload.setText("Upload");
+				if(task.isCancelled()) {
+					progbarUpload.setProgress(0);
+					lblUploadStatus.setText("Cancelled");
+				} else if(task.getException() != null) {
+					Log.debug(Log.UI, "Serial port task failed: %s", task.getException().getMessage());
+					Toast.show("Serial port error");
+				} else if(task.m_sResult != null) {
+					Toast.show(task.m_sResult);
+				}
+				m_task = null;
+				resumeTerminals();
+			}
+		};
+    	task.setOnSucceeded(onDone);
+    	task.setOnFailed(onDone);
+    	task.setOnCancelled(onDone);
+    	m_worker.execute(task);
+    	return true;
+    }
+    
+    @FXML void onMenuUploadAll(ActionEvent event) {
+    	if(m_task != null) {
+    		Toast.show("Serial port is busy");
+    		return;
+    	}
+    	List<String> available = new ArrayList<String>();
+    	for(String sPort: SerialPortList.getPortNames()) {
+    		if(!isTerminalPort(sPort))
+    			available.add(sPort);
+    	}
+    	if(available.isEmpty()) {
+    		Toast.show("No serial ports available - close terminals to free their ports");
+    		return;
+    	}
+    	final FlashFarm farm = new FlashFarm();
+    	for(Node node: vboxFirmwares.getChildren()) {
+    		FirmwareConfig fw = (FirmwareConfig)node;
+    		if(fw.isEnabled() && (fw.getOffsetValue() < 0 || !farm.addImage(fw.getPath(), fw.getOffsetValue()))) {
+    			Toast.show("Unable to load firmware " + fw.getPath());
+    			return;
     		}
-    		
-    		if(serialport.closePort())
-    			Main.debug("Closed upload port");
     	}
-    	catch (SerialPortException ex) {
-    		try {
-    			if(serialport.isOpened())
-    				serialport.closePort();
-			} catch (SerialPortException e) {
-				Main.debug("Unable to close port " + serialport.getPortName());
+    	final List<String> ports = choosePorts(available);
+    	if(ports.isEmpty())
+    		return;
+    	try {
+    		farm.prepare();
+    	} catch(IllegalArgumentException e) {
+    		Toast.show(e.getMessage());
+    		return;
+    	}
+    	farm.setStub(StubLoader.load(Main.props.getProperty("stub", StubLoader.DEFAULT_FILE)));
+    	farm.setShadowDir(Main.props.getProperty("shadow_dir", FlashShadow.DEFAULT_DIR));
+    	farm.setCaptureDir(Main.props.getProperty("capture_dir", ""));
+    	farm.setMaxBaud(cmbBaud.getValue());
+    	farm.setProfiles(new PortProfiles(Main.props));
+    	startTask(null, new SerialTask() {
+			@Override
+			protected Boolean call() throws Exception {
+				farm.setProgressListener(this);
+				Map<String, Boolean> results = farm.run(ports.toArray(new String[ports.size()]));
+				if(isCancelled())
+					return false;
+				int nPass = 0;
+				StringBuilder sb = new StringBuilder();
+				for(Map.Entry<String, Boolean> result: results.entrySet()) {
+					if(result.getValue())
+						++nPass;
+					sb.append(String.format("\n%s: %s", result.getKey(), result.getValue() ? "pass" : "FAIL"));
+				}
+				m_sResult = String.format("Uploaded to %d of %d ports", nPass, results.size()) + sb;
+				return nPass == results.size();
 			}
-    		Main.debug("Failed to open upload serial port. " + ex.getMessage());
+		});
+    }
+
+    /**
+     * Ask user which ports to upload to
+     * @param available Names of ports that may be used
+     * @return Ports selected, empty if user cancelled
+     */
+    private List<String> choosePorts(List<String> available) {
+    	Dialog<ButtonType> dialog = new Dialog<ButtonType>();
+    	dialog.initOwner(Main.pStage);
+    	dialog.setTitle("Upload to several ports");
+    	dialog.setHeaderText("Firmware on each selected device will be overwritten");
+    	dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+    	final Node btnOk = dialog.getDialogPane().lookupButton(ButtonType.OK);
+    	btnOk.setDisable(true);
+    	final List<CheckBox> checks = new ArrayList<CheckBox>();
+    	VBox vbox = new VBox(6);
+    	ChangeListener<Boolean> onSelect = new ChangeListener<Boolean>() {
+			@Override
+			public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) {
+				boolean bAny = false;
+				for(CheckBox check: checks)
+					bAny |= check.isSelected();
+				btnOk.setDisable(!bAny);
+			}
+		};
+    	for(String sPort: available) {
+    		CheckBox check = new CheckBox(sPort);
+    		check.selectedProperty().addListener(onSelect);
+    		checks.add(check);
+    		vbox.getChildren().add(check);
+    	}
+    	dialog.getDialogPane().setContent(vbox);
+    	List<String> ports = new ArrayList<String>();
+    	Optional<ButtonType> result = dialog.showAndWait();
+    	if(!result.isPresent() || result.get() != ButtonType.OK)
+    		return ports;
+    	for(CheckBox check: checks) {
+    		if(check.isSelected())
+    			ports.add(check.getText());
+    	}
+    	return ports;
+    }
+
+    /**
+     * @param sPort Name of serial port
+     * @return True if a terminal has the port open
+     */
+    private boolean isTerminalPort(String sPort) {
+		for(Tab tab: tabpaneMain.getTabs()) {
+			if(tab instanceof TerminalTab) {
+				SerialPort port = ((TerminalTab) tab).getController().GetSerialPort();
+				if(port != null && port.isOpened() && port.getPortName().equals(sPort))
+					return true;
+			}
+		}
+		return false;
+    }
+    
+    /**
+     * Build flash plan from enabled firmware rows
+     * @return Plan or null if an image cannot be loaded or images overlap (user is notified)
+     */
+    private FlashPlan buildPlan() {
+    	FlashPlan plan = new FlashPlan();
+    	for(Node node: vboxFirmwares.getChildren()) {
+    		FirmwareConfig fw = (FirmwareConfig)node;
+    		if(!fw.isEnabled())
+    			continue;
+    		if(fw.getOffsetValue() < 0) {
+    			Toast.show("Invalid offset for firmware " + fw.getPath());
+    			return null;
+    		}
+    		try {
+    			plan.add(fw.getOffsetValue(), FirmwareImage.open(fw.getPath()));
+    		} catch(IOException e) {
+    			Toast.show("Unable to load firmware " + fw.getPath() + "\n" + e.getMessage());
+    			return null;
+    		}
+    	}
+    	try {
+    		plan.build();
+    	} catch(IllegalArgumentException e) {
+    		Toast.show(e.getMessage());
+    		return null;
     	}
-    	resumeTerminals();
+    	return plan;
     }
     
     @FXML void onBtnAddFirmwareRow(ActionEvent event) {
@@ -200,63 +462,70 @@ public class MainUIController {
     
     @FXML
     void onMenuDebug(ActionEvent event) {
- 	   Main.bDebug = menuDebug.isSelected();
+ 	   Log.setDebug(menuDebug.isSelected());
     }
     
     @FXML
     void onMenuReset(ActionEvent event) {
-    	SerialPort serialport = new SerialPort(cmbPort.getValue());
-    	suspendTerminals(cmbPort.getValue());
-    	try {
-    		esp8266 esp = new esp8266(serialport, cmbBaud.getValue());
-    		if(!esp.reset(false))
-    			Main.debug("Failed to reset ESP8266");
-    	} catch(Exception e) {
-    		Main.debug("Failed to reset ESP8266");
-    	}
-    	resumeTerminals();
+    	startReset(cmbPort.getValue(), false);
     }
 
     @FXML
     void onMenuResetBootloader(ActionEvent event) {
-    	SerialPort serialport = new SerialPort(cmbPort.getValue());
-    	suspendTerminals(cmbPort.getValue());
-    	try {
-    		esp8266 esp = new esp8266(serialport, cmbBaud.getValue());
-    		if(!esp.reset(true))
-    			Main.debug("Failed to reset ESP8266");
-    	} catch(Exception e) {
-    		Main.debug("Failed to reset ESP8266");
-    	}
-    	resumeTerminals();
+    	startReset(cmbPort.getValue(), true);
+    }
+
+    private void startReset(final String sPort, final boolean bBootloader) {
+    	final int nBaud = cmbBaud.getValue();
+    	startTask(sPort, new SerialTask() {
+			@Override
+			protected Boolean call() throws Exception {
+				esp8266 esp = new esp8266(new SerialPort(sPort), nBaud);
+				try {
+					new PortProfiles(Main.props).apply(sPort, esp);
+					if(!esp.reset(bBootloader)) {
+						Log.debug(Log.UI, "Failed to reset ESP8266");
+						return false;
+					}
+					return true;
+				} finally {
+					esp.close();
+				}
+			}
+		});
     }
     
     @FXML
     void onMenuTest(ActionEvent event) {
 //    	Toast.show("Circinus is a small, faint constellation in the southern sky, first defined in 1756 by French astronomer Nicolas Louis de Lacaille. Its name is Latin for compass, a tool that draws circles. Its brightest star is the slightly variable Alpha Circini, the brightest rapidly oscillating Ap star in the night sky, with an apparent magnitude of 3.19. AX Circini is a Cepheid variable visible with the unaided eye, and BX Circini is a faint star thought to have been formed from two merged white dwarfs.");
   
-    	SerialPort serialport = new SerialPort(cmbPort.getValue());
-    	try {
-    		esp8266 esp = new esp8266(serialport, cmbBaud.getValue());
-    		if(esp.connect()) {
-    			Main.debug("Connected to ESP8266");
-	    		int[] mac = esp.getMac();
-	    			Main.debug("MAC: %02x:%02x:%02x:%02x\n", mac[0], mac[1], mac[2],mac[3]);
-    		}
-    		serialport.closePort();
-    	}
-    	catch (SerialPortException ex) {
-    		try {
-    			if(serialport.isOpened())
-    				serialport.closePort();
-			} catch (SerialPortException e) {
-				Main.debug("Unable to close port " + serialport.getPortName());
+    	final String sPort = cmbPort.getValue();
+    	final int nBaud = cmbBaud.getValue();
+    	startTask(sPort, new SerialTask() {
+			@Override
+			protected Boolean call() throws Exception {
+				esp8266 esp = new esp8266(new SerialPort(sPort), nBaud);
+				try {
+					PortProfiles profiles = new PortProfiles(Main.props);
+					profiles.apply(sPort, esp);
+					if(!esp.connect()) {
+						m_sResult = "Failed to connect to ESP8266";
+						return false;
+					}
+					profiles.update(sPort, esp);
+					Log.debug(Log.UI, "Connected to ESP8266 in %dms", esp.getConnectLatency());
+					int[] mac = esp.getMac();
+					m_sResult = String.format("MAC: %02x:%02x:%02x:%02x:%02x:%02x", mac[0], mac[1], mac[2], mac[3], mac[4], mac[5]);
+					Log.debug(Log.UI, m_sResult);
+					return true;
+				} catch(EspException e) {
+					m_sResult = "Failed to get MAC";
+					return false;
+				} finally {
+					esp.close();
+				}
 			}
-    		Main.debug("Failed to open upload serial port. " + ex.getMessage());
-    	} catch (Exception e) {
-    		Main.debug("Failed to get MAC");
-    	}
-
+		});
     }
     
     @FXML
@@ -294,7 +563,7 @@ public class MainUIController {
 		for(Tab tab: tabpaneMain.getTabs()) {
 			if(tab instanceof TerminalTab ) {
 				if (!((TerminalTab) tab).suspendPort(sPort)) {
-					Main.debug("Failed to suspend port for terminal " + tab.getText());
+					Log.debug(Log.UI, "Failed to suspend port for terminal %s", tab.getText());
 					return;
 				}
 			}
@@ -0,0 +1,90 @@
+package uk.co.riban.esp;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * PortProfiles class remembers how each serial port connects to its ESP8266 - reset strategy and reset-to-ROM latency
+ * @author Brian Walton
+ * @note Stored as "connect.PORT=STRATEGY,LATENCY" entries in a properties set, either the application configuration or a file of its own
+ */
+public class PortProfiles {
+
+	// Default file holding port profiles when not stored in application configuration
+	final static String DEFAULT_FILE = "ports.properties";
+
+	// Prefix of property keys
+	final static String KEY_PREFIX = "connect.";
+
+	private final Properties m_props;
+	private String m_sFile = null;
+
+	/**
+	 * @param props Properties to read and update, e.g. Main.props
+	 */
+	PortProfiles(Properties props) {
+		m_props = props;
+	}
+
+	/**
+	 * Load port profiles from a file of their own
+	 * @param sFile Path of file. A missing or unreadable file gives an empty set of profiles.
+	 * @return Port profiles which save() writes back to the file
+	 */
+	static PortProfiles load(String sFile) {
+		PortProfiles profiles = new PortProfiles(new Properties());
+		profiles.m_sFile = sFile;
+		try(InputStream in = new FileInputStream(sFile)) {
+			profiles.m_props.load(in);
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "No port profiles loaded from %s", sFile);
+		}
+		return profiles;
+	}
+
+	/**
+	 * Apply remembered profile of a port to a session before connecting
+	 * @param sPort Name of serial port
+	 * @param esp Session on that port
+	 */
+	void apply(String sPort, esp8266 esp) {
+		String sProfile = m_props.getProperty(KEY_PREFIX + sPort);
+		if(sProfile == null)
+			return;
+		String[] asValues = sProfile.split(",");
+		try {
+			esp.setConnectHint(Integer.parseInt(asValues[0].trim()), asValues.length > 1 ? Integer.parseInt(asValues[1].trim()) : -1);
+		} catch(NumberFormatException e) {
+			Log.debug(Log.PROTOCOL, "Ignoring invalid port profile %s=%s", sPort, sProfile);
+		}
+	}
+
+	/**
+	 * Remember how a session connected
+	 * @param sPort Name of serial port
+	 * @param esp Session which has connected successfully
+	 */
+	void update(String sPort, esp8266 esp) {
+		m_props.setProperty(KEY_PREFIX + sPort, String.format("%d,%d", esp.getResetStrategy(), esp.getConnectLatency()));
+	}
+
+	/**
+	 * Write profiles back to the file they were loaded from
+	 * @return True on success or if profiles are held in application configuration
+	 */
+	boolean save() {
+		if(m_sFile == null)
+			return true;
+		try(OutputStream out = new FileOutputStream(m_sFile)) {
+			m_props.store(out, "Jesper serial port profiles - reset strategy and latency (ms)");
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Unable to save port profiles to %s", m_sFile);
+			return false;
+		}
+		return true;
+	}
+}
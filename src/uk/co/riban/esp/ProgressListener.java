@@ -0,0 +1,14 @@
+package uk.co.riban.esp;
+
+/**
+ * @brief	Receives progress of long running transfers
+ * @author	Brian Walton
+ */
+public interface ProgressListener {
+	/**
+	 * Called as a transfer progresses
+	 * @param done Quantity of bytes transferred so far
+	 * @param total Total quantity of bytes to transfer
+	 */
+	void progress(long done, long total);
+}
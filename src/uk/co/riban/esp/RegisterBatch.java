@@ -0,0 +1,92 @@
+package uk.co.riban.esp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RegisterBatch class queues register reads and writes (and other simple commands) to be sent back to back by esp8266.execute()
+ * @author Brian Walton
+ * @note With the flasher stub, commands are sent with a few in flight and responses matched in order, so a batch costs little more
+ * than one round trip. The ROM loader is sent one command at a time.
+ */
+public class RegisterBatch {
+
+	private final List<int[]> m_commands = new ArrayList<int[]>(); //Operation code followed by parameters
+	private int[] m_anValues = new int[0]; //Response value of each command after execute
+	private boolean[] m_abSuccess = new boolean[0]; //True for each command that succeeded
+
+	/**
+	 * Queue a register read
+	 * @param address Register address
+	 * @return Index to pass to get() after execution
+	 */
+	public int readReg(int address) {
+		return command(esp8266.ESP_OP_READ_REG, address);
+	}
+
+	/**
+	 * Queue a register write
+	 * @param address Register address
+	 * @param value Value to write
+	 * @param mask Bits to change
+	 * @param delay_us Delay after write in microseconds
+	 * @return Index of command
+	 */
+	public int writeReg(int address, int value, int mask, int delay_us) {
+		return command(esp8266.ESP_OP_WRITE_REG, address, value, mask, delay_us);
+	}
+
+	/**
+	 * Queue a command with integer parameters and no data block
+	 * @param operation Command operation code
+	 * @param params Parameters
+	 * @return Index of command
+	 */
+	public int command(int operation, int... params) {
+		int[] anCommand = new int[params.length + 1];
+		anCommand[0] = operation;
+		System.arraycopy(params, 0, anCommand, 1, params.length);
+		m_commands.add(anCommand);
+		return m_commands.size() - 1;
+	}
+
+	/**
+	 * Get value returned by a command, e.g. a register read
+	 * @param index Index returned when command was queued
+	 * @return Value from response header
+	 */
+	public int get(int index) {
+		return m_anValues[index];
+	}
+
+	/**
+	 * @param index Index returned when command was queued
+	 * @return True if command succeeded
+	 */
+	public boolean isSuccess(int index) {
+		return m_abSuccess[index];
+	}
+
+	/**
+	 * @return Quantity of commands queued
+	 */
+	public int size() {
+		return m_commands.size();
+	}
+
+	int getOperation(int index) {
+		return m_commands.get(index)[0];
+	}
+
+	int[] getParams(int index) {
+		int[] anCommand = m_commands.get(index);
+		int[] anParams = new int[anCommand.length - 1];
+		System.arraycopy(anCommand, 1, anParams, 0, anParams.length);
+		return anParams;
+	}
+
+	void setResults(int[] values, boolean[] success) {
+		m_anValues = values;
+		m_abSuccess = success;
+	}
+}
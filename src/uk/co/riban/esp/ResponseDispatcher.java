@@ -0,0 +1,216 @@
+package uk.co.riban.esp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * ResponseDispatcher class routes response frames to the commands awaiting them
+ * @author Brian Walton
+ * @note Device handles commands in order so a response belongs to the oldest pending command with the same operation.
+ * Pending commands sent before it with no response by then will never get one and are failed straight away.
+ * Frames matching no pending command are counted as dead letters and dropped. Not thread safe - owned by one session.
+ */
+public class ResponseDispatcher {
+
+	/**
+	 * Command awaiting response
+	 */
+	public static class Pending {
+		final int m_nOperation;
+		final long m_lDeadline;
+		final long m_lQueued = System.nanoTime(); //For latency metrics
+		boolean m_bDone = false;
+		ByteBuffer m_response = null;
+
+		/**
+		 * @param operation Command operation code
+		 * @param deadline Time (ms) after which response is no longer expected
+		 */
+		protected Pending(int operation, long deadline) {
+			m_nOperation = operation;
+			m_lDeadline = deadline;
+		}
+
+		/**
+		 * Called when response arrives
+		 * @param response Response frame
+		 * @param borrowed True if the frame may be kept until the next dispatcher call. False if it must be copied.
+		 */
+		protected void complete(ByteBuffer response, boolean borrowed) {
+			if(borrowed) {
+				m_response = response;
+				return;
+			}
+			m_response = ByteBuffer.allocate(response.remaining());
+			m_response.order(ByteOrder.LITTLE_ENDIAN);
+			m_response.put(response.duplicate());
+			m_response.flip();
+		}
+
+		/**
+		 * @return True once response has arrived or can no longer arrive
+		 */
+		public boolean isDone() {
+			return m_bDone;
+		}
+	}
+
+	private final SlipReader m_reader;
+	private final LinkMetrics m_metrics;
+	private final ArrayDeque<Pending> m_pending = new ArrayDeque<Pending>();
+	private ByteBuffer m_lastFrame = null; //Frame lent to caller, recycled on next call
+	private int m_nDeadLetters = 0;
+	private int m_nLost = 0;
+
+	/**
+	 * @param reader Source of decoded frames
+	 */
+	ResponseDispatcher(SlipReader reader) {
+		this(reader, new LinkMetrics("dispatcher", null));
+	}
+
+	/**
+	 * @param reader Source of decoded frames
+	 * @param metrics Metrics to record response latency, errors and discarded frames
+	 */
+	ResponseDispatcher(SlipReader reader, LinkMetrics metrics) {
+		m_reader = reader;
+		m_metrics = metrics;
+	}
+
+	/**
+	 * Register a command before sending it
+	 * @param operation Command operation code
+	 * @param timeout Time (ms) allowed for response once device reaches this command
+	 * @return Pending command to pass to await()
+	 * @note Deadline starts from the deadline of the last pending command because the device will not start on this one until those are done
+	 */
+	Pending expect(int operation, int timeout) {
+		return add(new Pending(operation, startTime() + timeout));
+	}
+
+	/**
+	 * Register a command created by caller, e.g. one that extracts its result from the response
+	 * @param pending Pending command
+	 * @return pending
+	 */
+	<T extends Pending> T add(T pending) {
+		m_pending.add(pending);
+		return pending;
+	}
+
+	/**
+	 * Remove a command which could not be sent
+	 * @param pending Pending command
+	 */
+	void cancel(Pending pending) {
+		m_pending.remove(pending);
+		pending.m_bDone = true;
+	}
+
+	/**
+	 * @return Time (ms) from which the next command's deadline should be counted
+	 */
+	long startTime() {
+		long lNow = System.currentTimeMillis();
+		Pending last = m_pending.peekLast();
+		return (last == null) ? lNow : Math.max(lNow, last.m_lDeadline);
+	}
+
+	/**
+	 * Wait for response to a command, dispatching other responses as they arrive
+	 * @param pending Pending command returned by expect() or add()
+	 * @return Response frame or null if none arrived by deadline. Only valid until next call.
+	 */
+	ByteBuffer await(Pending pending) {
+		while(!pending.m_bDone) {
+			ByteBuffer frame = read(pending.m_lDeadline - System.currentTimeMillis());
+			if(frame == null) {
+				if(Log.isEnabled(Log.PROTOCOL, Log.DEBUG))
+					Log.debug(Log.PROTOCOL, "Timeout awaiting response to command 0x%02x", pending.m_nOperation);
+				m_metrics.timeout(pending.m_nOperation);
+				m_pending.remove(pending);
+				pending.m_bDone = true;
+				return null;
+			}
+			dispatch(frame, pending);
+		}
+		return pending.m_response;
+	}
+
+	/**
+	 * Read next frame without dispatching it, e.g. raw data packets or stub greeting
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return Frame or null on timeout. Only valid until next call.
+	 */
+	ByteBuffer read(long timeout) {
+		m_reader.recycle(m_lastFrame);
+		m_lastFrame = (timeout > 0) ? m_reader.take(timeout) : null;
+		return m_lastFrame;
+	}
+
+	/**
+	 * Discard pending commands, queued frames and any partially received frame
+	 */
+	void clear() {
+		for(Pending pending: m_pending)
+			pending.m_bDone = true;
+		m_pending.clear();
+		m_reader.clear();
+	}
+
+	/**
+	 * @return Quantity of frames which matched no pending command
+	 */
+	int getDeadLetters() {
+		return m_nDeadLetters;
+	}
+
+	/**
+	 * @return Quantity of commands failed because a later command was answered first
+	 */
+	int getLost() {
+		return m_nLost;
+	}
+
+	private void dispatch(ByteBuffer frame, Pending target) {
+		if(frame.remaining() < esp8266.ESP_HEADER_SIZE || frame.get(esp8266.ESP_HEADER_MSG_TYPE) != esp8266.ESP_MSGTYPE_RESPONSE) {
+			++m_nDeadLetters;
+			m_metrics.deadLetter();
+			return;
+		}
+		int nOperation = frame.get(esp8266.ESP_HEADER_OP) & 0xff;
+		Pending match = null;
+		for(Pending pending: m_pending) {
+			if(pending.m_nOperation == nOperation) {
+				match = pending;
+				break;
+			}
+		}
+		if(match == null) {
+			++m_nDeadLetters;
+			m_metrics.deadLetter();
+			return;
+		}
+		//Anything sent before the matched command has missed its response
+		for(Iterator<Pending> it = m_pending.iterator(); it.hasNext();) {
+			Pending pending = it.next();
+			it.remove();
+			if(pending == match)
+				break;
+			pending.m_bDone = true;
+			++m_nLost;
+			m_metrics.lost();
+			if(Log.isEnabled(Log.PROTOCOL, Log.DEBUG))
+				Log.debug(Log.PROTOCOL, "Response to command 0x%02x lost", pending.m_nOperation);
+		}
+		if(frame.remaining() >= esp8266.ESP_HEADER_SIZE + 2)
+			m_metrics.response(nOperation, System.nanoTime() - match.m_lQueued, frame.get(frame.limit() - 2), frame.get(frame.limit() - 1) & 0xff);
+		else
+			m_metrics.response(nOperation, System.nanoTime() - match.m_lQueued, 1, 0); //No status
+		match.complete(frame, match == target);
+		match.m_bDone = true;
+	}
+}
@@ -0,0 +1,142 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+
+/**
+ * SerialTransport class links to an ESP8266 through a local serial port using jssc
+ * @author Brian Walton
+ */
+public class SerialTransport implements Transport {
+
+	private final SerialPort m_serialPort;
+
+	/**
+	 * @param serialport Serial port, not yet opened
+	 */
+	SerialTransport(SerialPort serialport) {
+		m_serialPort = serialport;
+	}
+
+	/**
+	 * @param sPort Name of serial port
+	 */
+	SerialTransport(String sPort) {
+		this(new SerialPort(sPort));
+	}
+
+	@Override
+	public void open(int baud, final Receiver receiver) throws IOException {
+		try {
+			if(m_serialPort.isOpened())
+				m_serialPort.closePort();
+			if(!m_serialPort.openPort())
+				throw new IOException("Unable to open " + getName());
+			if(!m_serialPort.setParams(baud, 8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE)) {
+				m_serialPort.closePort();
+				throw new IOException("Unable to configure " + getName());
+			}
+			m_serialPort.setEventsMask(SerialPort.MASK_RXCHAR);
+			m_serialPort.addEventListener(new SerialPortEventListener() {
+				@Override
+				public void serialEvent(SerialPortEvent event) {
+					if(!event.isRXCHAR() || event.getEventValue() <= 0)
+						return;
+					try {
+						receiver.receive(ByteBuffer.wrap(m_serialPort.readBytes(event.getEventValue())));
+					} catch(SerialPortException e) {
+						Log.debug(Log.PROTOCOL, "Serial port error reading from ESP8266");
+					}
+				}
+			});
+		} catch(SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!m_serialPort.isOpened())
+			return;
+		try {
+			m_serialPort.closePort();
+		} catch(SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return m_serialPort.isOpened();
+	}
+
+	@Override
+	public void setBaud(int baud) throws IOException {
+		try {
+			if(!m_serialPort.setParams(baud, 8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE))
+				throw new IOException(String.format("Unable to set %s to %d baud", getName(), baud));
+		} catch(SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean hasBaudControl() {
+		return true;
+	}
+
+	@Override
+	public boolean hasLineControl() {
+		return true;
+	}
+
+	@Override
+	public void setDtr(boolean dtr) throws IOException {
+		try {
+			m_serialPort.setDTR(dtr);
+		} catch(SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void setRts(boolean rts) throws IOException {
+		try {
+			m_serialPort.setRTS(rts);
+		} catch(SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @note jssc only accepts a whole array so one exact length copy is made at the port boundary
+	 */
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		byte[] ab;
+		if(data.hasArray())
+			ab = Arrays.copyOfRange(data.array(), data.arrayOffset() + data.position(), data.arrayOffset() + data.limit());
+		else {
+			ab = new byte[data.remaining()];
+			data.duplicate().get(ab);
+		}
+		try {
+			if(!m_serialPort.writeBytes(ab))
+				throw new IOException("Write to " + getName() + " failed");
+		} catch(SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		data.position(data.limit());
+	}
+
+	@Override
+	public String getName() {
+		return m_serialPort.getPortName();
+	}
+}
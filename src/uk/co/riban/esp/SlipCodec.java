@@ -0,0 +1,210 @@
+package uk.co.riban.esp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SlipCodec class performs SLIP framing of ESP8266 command and response packets using reusable buffers
+ * @author Brian Walton
+ * @note Not thread safe - each direction of each session should own its own codec
+ */
+public class SlipCodec {
+
+	// SLIP special characters
+	final static byte SLIP_END     = (byte)0xc0;
+	final static byte SLIP_ESC     = (byte)0xdb;
+	final static byte SLIP_ESC_END = (byte)0xdc;
+	final static byte SLIP_ESC_ESC = (byte)0xdd;
+
+	// Default capacity of decoded frame buffer - enough for largest stub packet plus header
+	final static int DEFAULT_FRAME_SIZE = 0x4000 + 0x40;
+
+	private byte[] m_abTx = new byte[0];
+	private ByteBuffer m_txBuffer = ByteBuffer.wrap(m_abTx);
+	private ByteBuffer m_rxBuffer;
+	private boolean m_bInFrame = false;
+	private boolean m_bInEscape = false;
+	private int m_nRawLength = 0; //Unescaped length of last encoded packet
+
+	SlipCodec() {
+		this(DEFAULT_FRAME_SIZE);
+	}
+
+	/**
+	 * @param frameSize Maximum size of decoded frame. Longer frames are discarded.
+	 */
+	SlipCodec(int frameSize) {
+		m_rxBuffer = ByteBuffer.allocate(frameSize);
+		m_rxBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Build a SLIP encoded command packet in the transmit buffer
+	 * @param operation Command operation code
+	 * @param data Data block appended after parameters, position to limit. Set to null if not required. Buffer position is not changed.
+	 * @param params Integer parameters, each sent as little endian 32-bit word
+	 * @return Transmit buffer with position and limit bounding the encoded packet. Only valid until next call.
+	 * @note The data block is escaped and checksummed in a single pass. The header is escaped afterwards and slid up against the data.
+	 */
+	public ByteBuffer encodeCommand(int operation, ByteBuffer data, int... params) {
+		int nDataLen = (data == null) ? 0 : data.remaining();
+		int nPayloadLen = 4 * params.length + nDataLen;
+		int nHeadroom = 1 + 2 * (esp8266.ESP_HEADER_SIZE + 4 * params.length);
+		ensureTxCapacity(nHeadroom + 2 * nDataLen + 1);
+		byte[] ab = m_abTx;
+
+		//Escape data block after worst case header space, calculating checksum as we go
+		int nPos = nHeadroom;
+		int nChecksum = 0;
+		if(data != null) {
+			nChecksum = esp8266.ESP_CHECKSUM_MAGIC;
+			for(int nIndex = data.position(); nIndex < data.limit(); ++nIndex) {
+				byte b = data.get(nIndex);
+				nChecksum ^= b & 0xff;
+				nPos = escape(ab, nPos, b);
+			}
+		}
+		ab[nPos++] = SLIP_END;
+		int nEnd = nPos;
+
+		//Escape header and parameters at start of buffer
+		nPos = 0;
+		ab[nPos++] = SLIP_END;
+		nPos = escape(ab, nPos, (byte)esp8266.ESP_MSGTYPE_COMMAND);
+		nPos = escape(ab, nPos, (byte)operation);
+		nPos = escape(ab, nPos, (byte)nPayloadLen);
+		nPos = escape(ab, nPos, (byte)(nPayloadLen >> 8));
+		nPos = escapeInt(ab, nPos, nChecksum);
+		for(int nParam: params)
+			nPos = escapeInt(ab, nPos, nParam);
+
+		//Move header up to meet data
+		int nStart = nHeadroom - nPos;
+		System.arraycopy(ab, 0, ab, nStart, nPos);
+		m_txBuffer.limit(nEnd);
+		m_txBuffer.position(nStart);
+		m_nRawLength = esp8266.ESP_HEADER_SIZE + nPayloadLen;
+		return m_txBuffer;
+	}
+
+	/**
+	 * Build a SLIP encoded packet of raw data, without command header
+	 * @param data Data to encode, position to limit. Buffer position is not changed.
+	 * @return Transmit buffer with position and limit bounding the encoded packet. Only valid until next call.
+	 */
+	public ByteBuffer encodeFrame(ByteBuffer data) {
+		ensureTxCapacity(2 * data.remaining() + 2);
+		byte[] ab = m_abTx;
+		int nPos = 0;
+		ab[nPos++] = SLIP_END;
+		for(int nIndex = data.position(); nIndex < data.limit(); ++nIndex)
+			nPos = escape(ab, nPos, data.get(nIndex));
+		ab[nPos++] = SLIP_END;
+		m_txBuffer.limit(nPos);
+		m_txBuffer.position(0);
+		m_nRawLength = data.remaining();
+		return m_txBuffer;
+	}
+
+	/**
+	 * @return Length of content of last encoded packet before escaping, excluding delimiters
+	 */
+	public int getRawLength() {
+		return m_nRawLength;
+	}
+
+	/**
+	 * Decode SLIP encoded data, stopping at end of first complete frame
+	 * @param in Received data. Position is advanced past consumed bytes so remaining data may be passed in subsequent call.
+	 * @return True if a frame is complete and available from getFrame()
+	 * @note Data before the first frame delimiter is discarded
+	 */
+	public boolean decode(ByteBuffer in) {
+		while(in.hasRemaining()) {
+			byte b = in.get();
+			if(!m_bInFrame) {
+				if(b == SLIP_END) {
+					m_bInFrame = true;
+					m_bInEscape = false;
+					m_rxBuffer.clear();
+				}
+				continue;
+			}
+			if(m_bInEscape) {
+				m_bInEscape = false;
+				if(b == SLIP_ESC_END)
+					b = SLIP_END;
+				else if(b == SLIP_ESC_ESC)
+					b = SLIP_ESC;
+				else {
+					if(Log.isEnabled(Log.PROTOCOL, Log.DEBUG))
+						Log.debug(Log.PROTOCOL, "Invalid SLIP escape 0xdb 0x%02x", b & 0xff);
+					m_bInFrame = (b == SLIP_END); //Resynchronise
+					m_rxBuffer.clear();
+					continue;
+				}
+			} else if(b == SLIP_ESC) {
+				m_bInEscape = true;
+				continue;
+			} else if(b == SLIP_END) {
+				if(m_rxBuffer.position() == 0)
+					continue; //Back-to-back delimiters - treat as start of frame
+				m_bInFrame = false;
+				m_rxBuffer.flip();
+				return true;
+			}
+			if(!m_rxBuffer.hasRemaining()) {
+				if(Log.isEnabled(Log.PROTOCOL, Log.DEBUG))
+					Log.debug(Log.PROTOCOL, "SLIP frame exceeds %d bytes - discarded", m_rxBuffer.capacity());
+				m_bInFrame = false;
+				continue;
+			}
+			m_rxBuffer.put(b);
+		}
+		return false;
+	}
+
+	/**
+	 * Get the most recently decoded frame
+	 * @return Little endian buffer with position at start of frame and limit at end. Only valid until next call to decode.
+	 */
+	public ByteBuffer getFrame() {
+		return m_rxBuffer;
+	}
+
+	/**
+	 * Discard any partially decoded frame
+	 */
+	public void reset() {
+		m_bInFrame = false;
+		m_bInEscape = false;
+		m_rxBuffer.clear();
+	}
+
+	private void ensureTxCapacity(int size) {
+		if(m_abTx.length >= size)
+			return;
+		m_abTx = new byte[size];
+		m_txBuffer = ByteBuffer.wrap(m_abTx);
+	}
+
+	private static int escape(byte[] ab, int nPos, byte b) {
+		if(b == SLIP_END) {
+			ab[nPos++] = SLIP_ESC;
+			ab[nPos++] = SLIP_ESC_END;
+		} else if(b == SLIP_ESC) {
+			ab[nPos++] = SLIP_ESC;
+			ab[nPos++] = SLIP_ESC_ESC;
+		} else {
+			ab[nPos++] = b;
+		}
+		return nPos;
+	}
+
+	private static int escapeInt(byte[] ab, int nPos, int value) {
+		nPos = escape(ab, nPos, (byte)value);
+		nPos = escape(ab, nPos, (byte)(value >> 8));
+		nPos = escape(ab, nPos, (byte)(value >> 16));
+		return escape(ab, nPos, (byte)(value >> 24));
+	}
+}
@@ -0,0 +1,106 @@
+package uk.co.riban.esp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SlipReader class reassembles SLIP frames from transport receive events in to a bounded frame queue
+ * @author Brian Walton
+ * @note Frames are copied in to a fixed pool of buffers which must be returned with recycle() after use
+ */
+public class SlipReader implements Transport.Receiver {
+
+	// Quantity of decoded frames that may be queued before further frames are dropped
+	final static int FRAME_QUEUE_SIZE = 16;
+
+	private final SlipCodec m_codec = new SlipCodec();
+	private final BlockingQueue<ByteBuffer> m_frames = new ArrayBlockingQueue<ByteBuffer>(FRAME_QUEUE_SIZE);
+	private final BlockingQueue<ByteBuffer> m_pool = new ArrayBlockingQueue<ByteBuffer>(FRAME_QUEUE_SIZE + 1);
+	private volatile int m_nDropped = 0;
+	private final LinkMetrics m_metrics;
+
+	/**
+	 * Pass to Transport.open() to receive data
+	 */
+	SlipReader() {
+		this(new LinkMetrics("reader", null));
+	}
+
+	/**
+	 * @param metrics Metrics to record received bytes and dropped frames
+	 */
+	SlipReader(LinkMetrics metrics) {
+		m_metrics = metrics;
+		for(int i = 0; i < FRAME_QUEUE_SIZE + 1; ++i) {
+			ByteBuffer buffer = ByteBuffer.allocate(SlipCodec.DEFAULT_FRAME_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			m_pool.add(buffer);
+		}
+	}
+
+	@Override
+	public void receive(ByteBuffer in) {
+		m_metrics.received(in.remaining());
+		synchronized(m_codec) {
+			while(m_codec.decode(in)) {
+				ByteBuffer frame = m_pool.poll();
+				if(frame != null) {
+					frame.clear();
+					frame.put(m_codec.getFrame());
+					frame.flip();
+					if(m_frames.offer(frame))
+						continue;
+					m_pool.offer(frame); //Spare buffer while caller holds none
+				}
+				++m_nDropped;
+				m_metrics.dropped();
+				Log.debug(Log.PROTOCOL, "SLIP frame queue full - frame dropped");
+			}
+		}
+	}
+
+	/**
+	 * Wait for next decoded frame
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return Frame or null on timeout. Pass to recycle() when finished with.
+	 */
+	public ByteBuffer take(long timeout) {
+		try {
+			return m_frames.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Return a frame to the buffer pool
+	 * @param frame Frame previously returned by take(). Null is ignored.
+	 */
+	public void recycle(ByteBuffer frame) {
+		if(frame != null)
+			m_pool.offer(frame);
+	}
+
+	/**
+	 * Discard all queued frames and any partially received frame
+	 */
+	public void clear() {
+		synchronized(m_codec) {
+			m_codec.reset();
+			ByteBuffer frame;
+			while((frame = m_frames.poll()) != null)
+				recycle(frame);
+		}
+	}
+
+	/**
+	 * @return Quantity of frames dropped because the queue was full
+	 */
+	public int getDropped() {
+		return m_nDropped;
+	}
+}
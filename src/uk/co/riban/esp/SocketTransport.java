@@ -0,0 +1,136 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * SocketTransport class links to an ESP8266 through a raw TCP serial bridge, e.g. ser2net or an ESP-Link
+ * @author Brian Walton
+ * @note Raw bridges do not pass baud rate or DTR/RTS so device must be put in to bootloader by hand and the bridge's UART left at the ROM baud rate
+ */
+public class SocketTransport implements Transport {
+
+	// Time allowed to connect to bridge (ms)
+	final static int CONNECT_TIMEOUT = 3000;
+	// Size of receive buffer
+	final static int RX_BUFFER_SIZE = 0x1000;
+
+	private final String m_sHost;
+	private final int m_nPort;
+	private Socket m_socket = null;
+	private OutputStream m_out = null;
+
+	/**
+	 * @param sHost Host name or address of bridge
+	 * @param nPort TCP port of bridge
+	 */
+	SocketTransport(String sHost, int nPort) {
+		m_sHost = sHost;
+		m_nPort = nPort;
+	}
+
+	/**
+	 * @param sAddress Bridge address as host:port
+	 * @return Transport or null if address is not host:port
+	 */
+	static SocketTransport parse(String sAddress) {
+		int nColon = sAddress.lastIndexOf(':');
+		if(nColon <= 0)
+			return null;
+		try {
+			return new SocketTransport(sAddress.substring(0, nColon), Integer.parseInt(sAddress.substring(nColon + 1)));
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void open(int baud, final Receiver receiver) throws IOException {
+		close();
+		final Socket socket = new Socket();
+		socket.connect(new InetSocketAddress(m_sHost, m_nPort), CONNECT_TIMEOUT);
+		socket.setTcpNoDelay(true);
+		m_socket = socket;
+		m_out = socket.getOutputStream();
+		final InputStream in = socket.getInputStream();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] ab = new byte[RX_BUFFER_SIZE];
+				try {
+					int nLen;
+					while((nLen = in.read(ab)) >= 0)
+						receiver.receive(ByteBuffer.wrap(ab, 0, nLen));
+				} catch(IOException e) {
+					if(!socket.isClosed())
+						Log.debug(Log.PROTOCOL, "Connection to %s lost: %s", getName(), e.getMessage());
+				}
+			}
+		}, "SocketTransport " + getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(m_socket == null)
+			return;
+		Socket socket = m_socket;
+		m_socket = null;
+		m_out = null;
+		socket.close();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return m_socket != null && !m_socket.isClosed();
+	}
+
+	@Override
+	public void setBaud(int baud) throws IOException {
+		throw new IOException("Baud rate cannot be changed through raw TCP bridge");
+	}
+
+	@Override
+	public boolean hasBaudControl() {
+		return false;
+	}
+
+	@Override
+	public boolean hasLineControl() {
+		return false;
+	}
+
+	@Override
+	public void setDtr(boolean dtr) {
+		//Not passed by raw bridge
+	}
+
+	@Override
+	public void setRts(boolean rts) {
+		//Not passed by raw bridge
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		if(m_out == null)
+			throw new IOException(getName() + " is not open");
+		if(data.hasArray()) {
+			m_out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		} else {
+			byte[] ab = new byte[data.remaining()];
+			data.get(ab);
+			m_out.write(ab);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return m_sHost + ":" + m_nPort;
+	}
+}
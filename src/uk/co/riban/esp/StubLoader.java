@@ -0,0 +1,102 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * StubLoader class holds a RAM flasher stub to be uploaded to ESP8266 IRAM
+ * @author Brian Walton
+ * @note Reads the JSON stub description used by esptool (text, text_start, data, data_start, entry)
+ */
+public class StubLoader {
+
+	// Default stub file, looked for in the working directory
+	final static String DEFAULT_FILE = "stub_flasher_8266.json";
+
+	// Stub sends this frame once it is running
+	final static ByteBuffer STUB_GREETING = ByteBuffer.wrap("OHAI".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+
+	private ByteBuffer m_text;
+	private int m_nTextStart;
+	private ByteBuffer m_data;
+	private int m_nDataStart;
+	private int m_nEntry;
+
+	private StubLoader() {
+	}
+
+	/**
+	 * Load stub description from file
+	 * @param sPath Path to esptool style JSON stub file
+	 * @return Stub or null if file is missing or invalid
+	 */
+	static StubLoader load(String sPath) {
+		Path path = Paths.get(sPath);
+		if(!Files.isReadable(path))
+			return null;
+		try {
+			String sJson = new String(Files.readAllBytes(path), StandardCharsets.US_ASCII);
+			StubLoader stub = new StubLoader();
+			stub.m_text = ByteBuffer.wrap(Base64.getDecoder().decode(getString(sJson, "text")));
+			stub.m_nTextStart = (int)getNumber(sJson, "text_start");
+			stub.m_nEntry = (int)getNumber(sJson, "entry");
+			String sData = getString(sJson, "data");
+			if(sData != null) {
+				stub.m_data = ByteBuffer.wrap(Base64.getDecoder().decode(sData));
+				stub.m_nDataStart = (int)getNumber(sJson, "data_start");
+			}
+			return stub;
+		} catch(IOException | IllegalArgumentException | NullPointerException e) {
+			Log.debug(Log.PROTOCOL, "Invalid stub file %s", sPath);
+			return null;
+		}
+	}
+
+	/**
+	 * @return Code segment, loaded at getTextStart()
+	 */
+	ByteBuffer getText() {
+		return m_text;
+	}
+
+	int getTextStart() {
+		return m_nTextStart;
+	}
+
+	/**
+	 * @return Data segment, loaded at getDataStart(), or null if stub has no data segment
+	 */
+	ByteBuffer getData() {
+		return m_data;
+	}
+
+	int getDataStart() {
+		return m_nDataStart;
+	}
+
+	/**
+	 * @return Address of first instruction to run
+	 */
+	int getEntry() {
+		return m_nEntry;
+	}
+
+	private static String getString(String sJson, String sKey) {
+		Matcher matcher = Pattern.compile("\"" + sKey + "\"\\s*:\\s*\"([^\"]*)\"").matcher(sJson);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	private static long getNumber(String sJson, String sKey) {
+		Matcher matcher = Pattern.compile("\"" + sKey + "\"\\s*:\\s*(\\d+)").matcher(sJson);
+		if(!matcher.find())
+			throw new IllegalArgumentException("Missing " + sKey);
+		return Long.parseLong(matcher.group(1));
+	}
+}
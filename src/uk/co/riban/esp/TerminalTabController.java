@@ -1,5 +1,10 @@
 package uk.co.riban.esp;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.Arrays;
 
 import javafx.animation.Animation;
@@ -26,6 +31,12 @@ import jssc.SerialPortList;
 public class TerminalTabController {
 
 	private SerialPort serialport = null;
+	private volatile WireCapture capture = null; //Records terminal traffic while port is open if capture_dir is configured
+	//Receive decoding, only used by serial event thread while port is open
+	private final CharsetDecoder rxDecoder = Charset.defaultCharset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer rxBytes = ByteBuffer.allocate(256); //Received bytes not yet decoded, e.g. start of a multi-byte character
+	private CharBuffer rxChars = CharBuffer.allocate(256);
 	
 	//Define FXML components
 		@FXML private Node root;
@@ -147,12 +158,17 @@ public class TerminalTabController {
 		boolean closePort(final boolean bSuspend) {
 			if(serialport == null)
 				return true;
+			if(capture != null) {
+				capture.event(WireCapture.CAP_CLOSE, null);
+				capture.close();
+				capture = null;
+			}
 			if(serialport.isOpened())
 				try {
 					serialport.closePort();
-					Main.debug("Closed terminal port");
+					Log.debug(Log.TERMINAL, "Closed terminal port");
 				} catch (Exception e) {
-					Main.debug("Failed to close terminal port. " + e.getMessage());
+					Log.debug(Log.TERMINAL, "Failed to close terminal port. %s", e.getMessage());
 					Toast.show("Failed to close terminal serial port");
 //!@todo Why can't we close port?					return false;
 				}
@@ -187,40 +203,46 @@ public class TerminalTabController {
 				serialport.setEventsMask(nMask);
 			} catch (Exception e) {
 				serialport = null;
-				Main.debug("Failed to open terminal serial port. " + e.getMessage());
+				Log.debug(Log.TERMINAL, "Failed to open terminal serial port. %s", e.getMessage());
 				Toast.show("Failed to open terminal serial port");
 				return false;
 			}
 			txtConsole.setDisable(false);
-			Main.debug("Opened terminal port " + serialport.getPortName());
+			rxDecoder.reset();
+			rxBytes.clear();
+			Log.debug(Log.TERMINAL, "Opened terminal port %s", serialport.getPortName());
+			capture = WireCapture.create(Main.props.getProperty("capture_dir", ""), serialport.getPortName());
+			if(capture != null) {
+				capture.event(WireCapture.CAP_OPEN, serialport.getPortName());
+				capture.baud(cmbBaud.getValue());
+			}
 			try {
 				serialport.addEventListener(new SerialPortEventListener() {
 					@Override
 					public void serialEvent(SerialPortEvent event) {
 						if(event.isRXCHAR() && event.getEventValue() > 0){
 				            try {
-				            	int nCount = event.getEventValue();
-				            	for(int nIndex = 0; nIndex < nCount; ++nIndex) {
-				            		String sChar = serialport.readString(1);
-				            		switch(sChar.toCharArray()[0]) {
-				            			case 13:
-				            				txtConsole.appendText("\n");
-				            				break;
-				            			default:
-				            				txtConsole.appendText(sChar);
-				            		}
-				            	}
+				            	byte[] abData = serialport.readBytes(event.getEventValue());
+				            	if(abData == null)
+				            		return;
+				            	capture(WireCapture.CAP_RX, abData);
+				            	String sData = decode(abData);
+				            	if(!sData.isEmpty())
+				            		txtConsole.appendText(sData);
 				            } catch (SerialPortException e) {
-				            	Main.debug("Error recieving terminal data");
+				            	Log.debug(Log.TERMINAL, "Error recieving terminal data");
 				            }
 						} else {
 							//!@todo handle removal of serial port
-							Main.debug("Serial port event: %d", event.getEventType());
+							Log.debug(Log.TERMINAL, "Serial port event: %d", event.getEventType());
+							WireCapture cap = capture;
+							if(cap != null)
+								cap.event(WireCapture.CAP_EVENT, String.format("type=%d value=%d", event.getEventType(), event.getEventValue()));
 						}
 					}
 				});
 			} catch (SerialPortException e) {
-				Main.debug("Failed to create terminal serial port listener");
+				Log.debug(Log.TERMINAL, "Failed to create terminal serial port listener");
 			}
 			setFocus();
 			lblDetails.setText(String.format("%s: %d %d-%s-%s", serialport.getPortName(), cmbBaud.getValue(), cmbBits.getValue(), cmbParity.getValue(), cmbStop.getValue()));
@@ -234,6 +256,7 @@ public class TerminalTabController {
 				switch(event.getCode()) {
 					case TAB:
 							serialport.writeInt(0x09);
+							capture(WireCapture.CAP_TX, new byte[] {0x09});
 						event.consume();
 						break;
 					//!@todo handle any other non-printable characters
@@ -248,11 +271,49 @@ public class TerminalTabController {
 	   void onKeyTyped(KeyEvent event) {
 		   try {
 			   serialport.writeString(event.getCharacter());
+			   capture(WireCapture.CAP_TX, event.getCharacter().getBytes());
 		   } catch (SerialPortException e) {
-			   Main.debug("Error writing to terminal port");
+			   Log.debug(Log.TERMINAL, "Error writing to terminal port");
 		   }
 	   }
 	   
+	   /**
+	    * Decode received bytes, keeping any incomplete multi-byte character for the next read
+	    * @param abData Bytes received
+	    * @return Decoded text with carriage return shown as newline
+	    */
+	   private String decode(byte[] abData) {
+		   if(rxBytes.remaining() < abData.length) {
+			   ByteBuffer bytes = ByteBuffer.allocate(rxBytes.position() + abData.length);
+			   rxBytes.flip();
+			   rxBytes = bytes.put(rxBytes);
+		   }
+		   rxBytes.put(abData);
+		   rxBytes.flip();
+		   int nChars = (int)Math.ceil(rxBytes.remaining() * rxDecoder.maxCharsPerByte());
+		   if(rxChars.capacity() < nChars)
+			   rxChars = CharBuffer.allocate(nChars);
+		   rxChars.clear();
+		   rxDecoder.decode(rxBytes, rxChars, false);
+		   rxBytes.compact();
+		   rxChars.flip();
+		   for(int nIndex = 0; nIndex < rxChars.limit(); ++nIndex)
+			   if(rxChars.get(nIndex) == 13)
+				   rxChars.put(nIndex, '\n');
+		   return rxChars.toString();
+	   }
+
+	   /**
+	    * Record terminal data if capturing
+	    * @param type WireCapture.CAP_TX or WireCapture.CAP_RX
+	    * @param abData Data sent or received
+	    */
+	   private void capture(int type, byte[] abData) {
+		   WireCapture cap = capture;
+		   if(cap != null)
+			   cap.data(type, abData, 0, abData.length);
+	   }
+
 	   /**
 	    * 	Sets input focus to appropriate control.
 	    *	If serial port is connected then focus is set to the text area.
@@ -0,0 +1,93 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @brief	Byte stream link to an ESP8266 - serial port, TCP serial bridge or in-memory loopback
+ * @author	Brian Walton
+ * @note	Received data is pushed to a receiver as it arrives. Timeouts are applied by the receiver's consumer, e.g. SlipReader.take().
+ */
+public interface Transport {
+
+	/**
+	 * Receives data from a transport
+	 */
+	interface Receiver {
+		/**
+		 * Called from transport's receive thread as data arrives
+		 * @param data Received bytes, position to limit. Only valid during call.
+		 */
+		void receive(ByteBuffer data);
+	}
+
+	/**
+	 * Open link, closing it first if already open
+	 * @param baud Baud rate (ignored by transports without a baud rate)
+	 * @param receiver Receiver of incoming data
+	 * @throws IOException if link cannot be opened
+	 */
+	void open(int baud, Receiver receiver) throws IOException;
+
+	/**
+	 * Close link. Does nothing if not open.
+	 * @throws IOException if link cannot be closed cleanly
+	 */
+	void close() throws IOException;
+
+	/**
+	 * @return True if link is open
+	 */
+	boolean isOpen();
+
+	/**
+	 * Change baud rate without closing link
+	 * @param baud New baud rate
+	 * @throws IOException if rate cannot be set
+	 */
+	void setBaud(int baud) throws IOException;
+
+	/**
+	 * @return True if setBaud() can change the rate, so the device may be asked to change rate too
+	 */
+	boolean hasBaudControl();
+
+	/**
+	 * @return True if DTR and RTS reach the device so it can be reset by the host
+	 */
+	boolean hasLineControl();
+
+	/**
+	 * @param dtr True to assert DTR
+	 * @throws IOException on link error
+	 */
+	void setDtr(boolean dtr) throws IOException;
+
+	/**
+	 * @param rts True to assert RTS
+	 * @throws IOException on link error
+	 */
+	void setRts(boolean rts) throws IOException;
+
+	/**
+	 * Send data
+	 * @param data Data to send, position to limit. Position is advanced to limit.
+	 * @throws IOException on link error
+	 */
+	void write(ByteBuffer data) throws IOException;
+
+	/**
+	 * @return Name of link, e.g. serial port name or host:port
+	 */
+	String getName();
+
+	/**
+	 * Create transport from a name given by user
+	 * @param sName host:port for a TCP serial bridge, otherwise serial port name
+	 * @return Transport, not yet opened
+	 */
+	static Transport forName(String sName) {
+		Transport transport = SocketTransport.parse(sName);
+		return (transport == null) ? new SerialTransport(sName) : transport;
+	}
+}
@@ -0,0 +1,241 @@
+package uk.co.riban.esp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * WireCapture class records serial link traffic and line changes with nanosecond timestamps to an append-only binary file
+ * @author Brian Walton
+ * @note File starts with a header of CAP_HEADER_SIZE bytes: magic, version, wall clock time of start (ms) and System.nanoTime() of start.
+ * Each record is: type (1 byte), nanoseconds since previous record (varint), payload length (varint), payload.
+ * The file is written through a memory mapped segment of CAP_SEGMENT_SIZE bytes so recording is a memory copy - the next segment is mapped when one fills.
+ * Unused space after the last record is zero (CAP_END) if the file could not be truncated on close.
+ * Recording never throws - a capture that fails to map is disabled and the link carries on.
+ */
+public class WireCapture {
+
+	// Record types
+	final static int CAP_END   = 0; //No more records
+	final static int CAP_TX    = 1; //Bytes written by host
+	final static int CAP_RX    = 2; //Bytes received by host
+	final static int CAP_DTR   = 3; //DTR changed - 1 byte payload, 1 if asserted
+	final static int CAP_RTS   = 4; //RTS changed - 1 byte payload, 1 if asserted
+	final static int CAP_BAUD  = 5; //Baud rate set - 4 byte payload
+	final static int CAP_OPEN  = 6; //Link opened - payload is link name (UTF-8)
+	final static int CAP_CLOSE = 7; //Link closed - no payload
+	final static int CAP_EVENT = 8; //Other port event - payload is description (UTF-8)
+	final static String[] CAP_NAMES = {"end", "tx", "rx", "dtr", "rts", "baud", "open", "close", "event"};
+
+	// File header
+	final static int CAP_MAGIC       = 0x5041434a; //"JCAP"
+	final static int CAP_VERSION     = 1;
+	final static int CAP_HEADER_SIZE = 24;
+
+	// Size of each memory mapped segment of capture file
+	final static int CAP_SEGMENT_SIZE = 0x100000;
+
+	// Largest record overhead: type, 10 byte varint time, 5 byte varint length
+	private final static int CAP_RECORD_OVERHEAD = 16;
+
+	private final String m_sFile;
+	private final FileChannel m_channel;
+	private MappedByteBuffer m_segment = null; //Current window in to file, null when closed or failed
+	private long m_lSegmentStart = 0; //File offset of m_segment
+	private final long m_lStart; //System.nanoTime() of capture start
+	private long m_lLast; //System.nanoTime() of last record
+	private long m_lRecords = 0;
+
+	/**
+	 * Create capture file, overwriting any existing file
+	 * @param sFile Path of capture file
+	 * @throws IOException if file cannot be created
+	 */
+	public WireCapture(String sFile) throws IOException {
+		m_sFile = sFile;
+		m_channel = FileChannel.open(Paths.get(sFile), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		m_lStart = System.nanoTime();
+		m_lLast = m_lStart;
+		try {
+			map(0, CAP_SEGMENT_SIZE);
+		} catch(IOException e) {
+			m_channel.close();
+			throw e;
+		}
+		m_segment.putInt(CAP_MAGIC);
+		m_segment.putInt(CAP_VERSION);
+		m_segment.putLong(System.currentTimeMillis());
+		m_segment.putLong(m_lStart);
+	}
+
+	/**
+	 * Create capture file with a unique name in a directory
+	 * @param sDir Directory to create file in, created if necessary. Null or empty for no capture.
+	 * @param sName Link name to include in file name, e.g. port name
+	 * @return Capture or null if not configured or file cannot be created
+	 */
+	static WireCapture create(String sDir, String sName) {
+		if(sDir == null || sDir.isEmpty())
+			return null;
+		File dir = new File(sDir);
+		dir.mkdirs();
+		String sFile = String.format("%s-%s.jcap", sName.replaceAll("[^A-Za-z0-9._-]", "_"), new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()));
+		try {
+			return new WireCapture(new File(dir, sFile).getPath());
+		} catch(IOException e) {
+			Log.log(Log.PROTOCOL, Log.WARN, "Unable to create capture file %s: %s", sFile, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return Path of capture file
+	 */
+	public String getFile() {
+		return m_sFile;
+	}
+
+	/**
+	 * @return Quantity of records written
+	 */
+	public synchronized long getRecords() {
+		return m_lRecords;
+	}
+
+	/**
+	 * Record data sent or received
+	 * @param type CAP_TX or CAP_RX
+	 * @param data Data, position to limit. Position is not changed.
+	 */
+	void data(int type, ByteBuffer data) {
+		int nPosition = data.position();
+		synchronized(this) {
+			if(begin(type, data.remaining())) {
+				m_segment.put(data);
+				++m_lRecords;
+			}
+		}
+		data.position(nPosition);
+	}
+
+	/**
+	 * Record data sent or received
+	 * @param type CAP_TX or CAP_RX
+	 * @param data Data
+	 * @param offset Offset of first byte in data
+	 * @param length Quantity of bytes
+	 */
+	synchronized void data(int type, byte[] data, int offset, int length) {
+		if(begin(type, length)) {
+			m_segment.put(data, offset, length);
+			++m_lRecords;
+		}
+	}
+
+	/**
+	 * Record change of DTR or RTS
+	 * @param type CAP_DTR or CAP_RTS
+	 * @param asserted True if line asserted
+	 */
+	synchronized void line(int type, boolean asserted) {
+		if(begin(type, 1)) {
+			m_segment.put((byte)(asserted ? 1 : 0));
+			++m_lRecords;
+		}
+	}
+
+	/**
+	 * Record change of baud rate
+	 * @param baud New baud rate
+	 */
+	synchronized void baud(int baud) {
+		if(begin(CAP_BAUD, 4)) {
+			m_segment.putInt(baud);
+			++m_lRecords;
+		}
+	}
+
+	/**
+	 * Record a port event
+	 * @param type CAP_OPEN, CAP_CLOSE or CAP_EVENT
+	 * @param sText Description, e.g. link name. May be null.
+	 */
+	void event(int type, String sText) {
+		byte[] abText = (sText == null) ? new byte[0] : sText.getBytes(StandardCharsets.UTF_8);
+		data(type, abText, 0, abText.length);
+	}
+
+	/**
+	 * Write record header, mapping next segment if required
+	 * @param type Record type
+	 * @param length Length of payload
+	 * @return True if payload may be written to m_segment
+	 */
+	private boolean begin(int type, int length) {
+		if(m_segment == null)
+			return false;
+		long lNow = System.nanoTime();
+		if(m_segment.remaining() < length + CAP_RECORD_OVERHEAD) {
+			try {
+				map(m_lSegmentStart + m_segment.position(), Math.max(CAP_SEGMENT_SIZE, length + CAP_RECORD_OVERHEAD));
+			} catch(IOException e) {
+				Log.log(Log.PROTOCOL, Log.WARN, "Capture to %s stopped: %s", m_sFile, e.getMessage());
+				m_segment = null;
+				return false;
+			}
+		}
+		m_segment.put((byte)type);
+		putVarint(lNow - m_lLast);
+		putVarint(length);
+		m_lLast = lNow;
+		return true;
+	}
+
+	private void map(long lOffset, int nSize) throws IOException {
+		m_segment = m_channel.map(FileChannel.MapMode.READ_WRITE, lOffset, nSize);
+		m_segment.order(ByteOrder.LITTLE_ENDIAN);
+		m_lSegmentStart = lOffset;
+	}
+
+	private void putVarint(long lValue) {
+		while((lValue & ~0x7FL) != 0) {
+			m_segment.put((byte)((lValue & 0x7F) | 0x80));
+			lValue >>>= 7;
+		}
+		m_segment.put((byte)lValue);
+	}
+
+	/**
+	 * Flush and close capture file. Further records are ignored.
+	 */
+	public synchronized void close() {
+		if(!m_channel.isOpen())
+			return;
+		long lLength = -1;
+		if(m_segment != null) {
+			m_segment.force();
+			lLength = m_lSegmentStart + m_segment.position();
+			m_segment = null;
+		}
+		try {
+			if(lLength >= 0)
+				m_channel.truncate(lLength); //May fail while mapped on some platforms - readers stop at CAP_END padding
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Capture file %s not truncated: %s", m_sFile, e.getMessage());
+		}
+		try {
+			m_channel.close();
+		} catch(IOException e) {
+			Log.log(Log.PROTOCOL, Log.WARN, "Failed to close capture file %s: %s", m_sFile, e.getMessage());
+		}
+		Log.log(Log.PROTOCOL, Log.INFO, "Captured %d records to %s", m_lRecords, m_sFile);
+	}
+}
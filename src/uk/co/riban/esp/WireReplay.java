@@ -0,0 +1,137 @@
+package uk.co.riban.esp;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * WireReplay class plays back a file written by WireCapture
+ * @author Brian Walton
+ * @note Records may be played at original speed, scaled speed or as fast as they can be handled.
+ * Received data may be fed to any Transport.Receiver, e.g. SlipReader, to repeat decoding of a captured session.
+ */
+public class WireReplay {
+
+	/**
+	 * Handles each record played back
+	 */
+	interface Handler {
+		/**
+		 * Called for each record in order of capture
+		 * @param type WireCapture.CAP_* record type
+		 * @param nanos Nanoseconds since start of capture
+		 * @param data Payload, position to limit. Only valid during call.
+		 */
+		void record(int type, long nanos, ByteBuffer data);
+	}
+
+	private final String m_sFile;
+	private final ByteBuffer m_file;
+	private final long m_lStartTime; //Wall clock time of capture start in milliseconds
+
+	/**
+	 * Open capture file
+	 * @param sFile Path of capture file
+	 * @throws IOException if file cannot be read or is not a capture file
+	 */
+	public WireReplay(String sFile) throws IOException {
+		m_sFile = sFile;
+		FileChannel channel = FileChannel.open(Paths.get(sFile), StandardOpenOption.READ);
+		try {
+			if(channel.size() < WireCapture.CAP_HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+				throw new IOException(sFile + " is not a capture file");
+			m_file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			channel.close();
+		}
+		if(m_file.getInt(0) != WireCapture.CAP_MAGIC)
+			throw new IOException(sFile + " is not a capture file");
+		if(m_file.getInt(4) != WireCapture.CAP_VERSION)
+			throw new IOException(sFile + " has unsupported capture version " + m_file.getInt(4));
+		m_lStartTime = m_file.getLong(8);
+	}
+
+	/**
+	 * @return Wall clock time of capture start in milliseconds since epoch
+	 */
+	public long getStartTime() {
+		return m_lStartTime;
+	}
+
+	/**
+	 * Play all records
+	 * @param handler Handler to receive each record
+	 * @param speed Playback rate relative to capture, e.g. 1 for original timing. 0 to play as fast as possible.
+	 * @return Quantity of records played
+	 * @throws IOException if file is truncated or corrupt. Records before the fault have been played.
+	 */
+	public long play(Handler handler, double speed) throws IOException {
+		ByteBuffer file = m_file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		file.position(WireCapture.CAP_HEADER_SIZE);
+		long lNanos = 0; //Capture time of current record
+		long lRecords = 0;
+		long lPlayStart = System.nanoTime();
+		try {
+			while(file.hasRemaining()) {
+				int nType = file.get() & 0xFF;
+				if(nType == WireCapture.CAP_END)
+					break;
+				lNanos += getVarint(file);
+				long lLength = getVarint(file);
+				if(lLength > file.remaining())
+					throw new IOException(String.format("%s truncated at offset %d", m_sFile, file.position()));
+				ByteBuffer data = file.slice();
+				data.limit((int)lLength);
+				file.position(file.position() + (int)lLength);
+				if(speed > 0) {
+					long lDue = lPlayStart + (long)(lNanos / speed);
+					long lWait;
+					while((lWait = lDue - System.nanoTime()) > 0)
+						LockSupport.parkNanos(lWait);
+				}
+				handler.record(nType, lNanos, data);
+				++lRecords;
+			}
+		} catch(BufferUnderflowException e) {
+			throw new IOException(String.format("%s truncated at offset %d", m_sFile, file.position()));
+		}
+		return lRecords;
+	}
+
+	/**
+	 * Feed received data to a receiver, e.g. SlipReader
+	 * @param receiver Receiver of captured RX data
+	 * @param speed Playback rate relative to capture, e.g. 1 for original timing. 0 to play as fast as possible.
+	 * @return Quantity of bytes fed to receiver
+	 * @throws IOException if file is truncated or corrupt
+	 */
+	public long replay(final Transport.Receiver receiver, double speed) throws IOException {
+		final long[] alBytes = new long[1];
+		play(new Handler() {
+			@Override
+			public void record(int type, long nanos, ByteBuffer data) {
+				if(type != WireCapture.CAP_RX)
+					return;
+				alBytes[0] += data.remaining();
+				receiver.receive(data);
+			}
+		}, speed);
+		return alBytes[0];
+	}
+
+	private static long getVarint(ByteBuffer file) throws IOException {
+		long lValue = 0;
+		for(int nShift = 0; nShift < 64; nShift += 7) {
+			int nByte = file.get();
+			lValue |= (long)(nByte & 0x7F) << nShift;
+			if((nByte & 0x80) == 0)
+				return lValue;
+		}
+		throw new IOException("Invalid length in capture file");
+	}
+}
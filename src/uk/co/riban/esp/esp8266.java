@@ -1,8 +1,17 @@
 package uk.co.riban.esp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
 import jssc.SerialPort;
 import jssc.SerialPortException;
-import jssc.SerialPortTimeoutException;
 
 /**
  * esp8266 class represents the interface with an ESP8266 via serial interface
@@ -27,13 +36,26 @@ public class esp8266 {
 	final static int ESP_OP_WRITE_REG   = 0x09;
 	final static int ESP_OP_READ_REG    = 0x0a;
 
+    // Compressed flash commands supported by flasher stubs (not ESP8266 ROM)
+	final static int ESP_OP_FLASH_DEFL_BEGIN = 0x10;
+	final static int ESP_OP_FLASH_DEFL_DATA  = 0x11;
+	final static int ESP_OP_FLASH_DEFL_END   = 0x12;
+	final static int ESP_OP_CHANGE_BAUDRATE  = 0x0f;
+	final static int ESP_OP_SPI_FLASH_MD5    = 0x13;
+	final static int ESP_OP_READ_FLASH       = 0xd2;
+
     // Maximum block sized for RAM and Flash writes, respectively.
 	final static int ESP_RAM_BLOCK   = 0x1800;
 	final static int ESP_FLASH_BLOCK = 0x400;
+	final static int ESP_STUB_FLASH_BLOCK = 0x4000; //Flasher stub accepts larger blocks
+	final static int ESP_STUB_FLASH_WINDOW = 2; //Flasher stub receives the next block while it writes the current one
 
     // Default baud rate. The ROM auto-bauds, so we can use more or less whatever we want.
 	final static int ESP_ROM_BAUD    = 115200;
 
+    // Baud rates tried in turn when negotiating high speed link with flasher stub
+	final static int[] ESP_STUB_BAUDS = {2000000, 1500000, 921600, 460800, 230400, ESP_ROM_BAUD};
+
     // First byte of the application image
 	final static int ESP_IMAGE_MAGIC = 0xe9;
 
@@ -59,33 +81,189 @@ public class esp8266 {
     final static int ESP_HEADER_VALUE    = 4; //uint32 Value (response message)
 
     // Timeouts
-    final static int ESP_RESPONSE_RETRY  = 100; //How many times we try to get a response
     final static int ESP_SLIP_TIMEOUT    = 500; //How many times we try to get a response
+    final static int ESP_FLASH_RETRY     = 3; //How many times we resend a rejected flash block or restart a region after one
+
+    // Results of writeBlocks
+    private final static int BLOCKS_OK      = 0;
+    private final static int BLOCKS_FAILED  = 1;
+    private final static int BLOCKS_RESTART = 2; //Loader took blocks sent after a rejected block - region must be begun again
+    final static int ESP_STUB_TIMEOUT    = 1000; //How long we wait for stub to start
+    final static int ESP_MD5_TIMEOUT_PER_MB = 8000; //How long device may take to calculate MD5 of each MB of flash
+    final static int ESP_ERASE_TIMEOUT_PER_MB = 30000; //How long device may take to erase each MB of flash
+    final static int ESP_READ_RETRY      = 3; //How many times we resume an interrupted flash read
+    // How many flash read packets the stub may send before we acknowledge.
+    // The stub stops sending when this many packets are unacknowledged, so the reader queue holds at most this many data frames plus the
+    // final MD5 frame whatever the baud rate - flow control is by acknowledgement, not by rate. Half of FRAME_QUEUE_SIZE leaves room for
+    // frames queued while an acknowledgement is in transit. 8 x 4KB is about 160ms of data at 2Mbaud, far longer than an acknowledgement
+    // takes, so a larger window would not read faster.
+    final static int ESP_READ_IN_FLIGHT  = SlipReader.FRAME_QUEUE_SIZE / 2;
+    final static int ESP_BATCH_WINDOW    = 4; //How many batched commands we send to the stub before awaiting response - ROM handles one at a time
+    final static int ESP_SYNC_INTERVAL   = 20; //How long we wait for each SYNC response while connecting
+    final static int ESP_SYNC_WINDOW     = 500; //How long after reset we keep trying to sync
+    final static int ESP_SYNC_ATTEMPTS   = 2; //How many times we reset with each strategy before trying the next
+    final static int ESP_RESET_HOLD      = 50; //How long reset and boot mode lines are held
+
+    // Reset strategies for different DTR/RTS wiring
+    final static int ESP_RESET_DTR = 0; //DTR drives RST, RTS drives GPIO0
+    final static int ESP_RESET_RTS = 1; //RTS drives RST, DTR drives GPIO0 (esptool wiring)
+    final static int ESP_RESET_NONE = 2; //No auto reset - device is put in to bootloader by hand
+    final static int ESP_RESET_STRATEGIES = 3;
+
+    // Size of input chunks fed to compressor
+    final static int ESP_DEFLATE_CHUNK = 0x10000;
+
+    // Size of MD5 digest
+    final static int ESP_MD5_SIZE = 16;
     
-    private SerialPort m_serialPort = null;
+    // Payload of SYNC command
+    final static ByteBuffer SYNC_DATA = ByteBuffer.wrap(new byte[] {0x07, 0x07, 0x12, 0x20,
+    		0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55,
+    		0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55}).asReadOnlyBuffer();
+
+    private CaptureTransport m_transport = null; //Link to device, recording traffic while capture is set
+    private SlipCodec m_txCodec = new SlipCodec(); //Reusable encoder for outgoing commands
+    private SlipReader m_reader = null; //Decodes incoming frames on serial port event thread
+    private ResponseDispatcher m_dispatcher = null; //Routes responses to commands awaiting them
+    private LinkMetrics m_metrics = null; //Traffic, error and latency counters of this link
+    private int m_nFlashBlock = ESP_FLASH_BLOCK; //Size of each flash data block
+    private int m_nFlashWindow = 1; //Maximum quantity of flash data blocks sent before awaiting response
+    private byte[] m_abPad = new byte[0]; //Reusable buffer for padding final flash block
+    private ProgressListener m_progress = null; //Notified as flash data blocks are acknowledged
+    private int[] m_anOtp = null; //Cached OTP words MAC0, MAC1, MAC3 - null until read
+    private int m_nFlashId = 0; //Cached SPI flash ID
+    private boolean m_bFlashId = false; //True if m_nFlashId is valid
+    private boolean m_bDeflate = false; //True while flasher stub is running and has not rejected compressed flash commands
+    private boolean m_bStub = false; //True if flasher stub is running
+    private StubLoader m_stub = null; //Last stub loaded, reloaded if link must be restored after a failed baud change
+    /**
+     * MD5 digest requested without waiting for the response
+     */
+    public static class PendingDigest extends ResponseDispatcher.Pending {
+    	final byte[] m_abDigest = new byte[ESP_MD5_SIZE];
+    	boolean m_bSuccess = false;
+
+    	PendingDigest(long deadline) {
+    		super(ESP_OP_SPI_FLASH_MD5, deadline);
+    	}
+
+    	@Override
+    	protected void complete(ByteBuffer response, boolean borrowed) {
+    		//Keep only the digest so the frame need not be copied
+    		m_bSuccess = isSuccess(response) && response.remaining() >= ESP_HEADER_SIZE + ESP_MD5_SIZE + 2;
+    		if(m_bSuccess)
+    			for(int nIndex = 0; nIndex < ESP_MD5_SIZE; ++nIndex)
+    				m_abDigest[nIndex] = response.get(ESP_HEADER_SIZE + nIndex);
+    	}
+
+    	/**
+    	 * @return Device digest. Only valid once waitDigest() has returned true.
+    	 */
+    	public byte[] getDigest() {
+    		return m_abDigest;
+    	}
+    }
+
+    private int m_nBaud; //Current baud rate of serial port
+    private int m_nResetStrategy = ESP_RESET_DTR; //How DTR/RTS are wired to RST/GPIO0
+    private int m_nConnectLatency = -1; //Milliseconds from reset release to first SYNC response, -1 if unknown
+    private ByteBuffer m_ack = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN); //Reusable flash read acknowledgement
     
     esp8266(SerialPort serialport, int baud) throws SerialPortException {
-    	m_serialPort = serialport;
+    	m_transport = new CaptureTransport(new SerialTransport(serialport));
     	//Open serial port
-		openPort(baud); //!@todo should we be opening port when object is instantiated?
-		//!@todo implement slip reader listener on serial port
+    	try {
+    		openPort(baud); //!@todo should we be opening port when object is instantiated?
+    	} catch(IOException e) {
+    		if(e.getCause() instanceof SerialPortException)
+    			throw (SerialPortException)e.getCause();
+    		throw new SerialPortException(serialport.getPortName(), "openPort", e.getMessage());
+    	}
+    }
+
+    /**
+     * @param transport Link to device, e.g. SerialTransport, SocketTransport or LoopbackTransport
+     * @param baud Baud rate
+     * @throws IOException if link cannot be opened
+     */
+    esp8266(Transport transport, int baud) throws IOException {
+    	m_transport = new CaptureTransport(transport);
+    	openPort(baud);
     }
     
-    public boolean openPort(int baud) throws SerialPortException {
-    	int nDataBits = 8, nStopBits = SerialPort.STOPBITS_1, nParity = SerialPort.PARITY_NONE;
-    	if(m_serialPort == null)
+    public boolean openPort(int baud) throws IOException {
+    	if(m_transport == null)
     		return false;
-		if(m_serialPort.isOpened())
-			m_serialPort.closePort();
-		if(!m_serialPort.openPort())
-			return false;
-		if(!m_serialPort.setParams(baud, nDataBits, nStopBits, nParity)) {
-			m_serialPort.closePort();
-			return false;
-    		}
+		if(m_metrics == null) {
+			m_metrics = new LinkMetrics(m_transport.getName(), LinkMetrics.TOTAL);
+			m_metrics.register();
+		}
+		m_reader = new SlipReader(m_metrics);
+		m_dispatcher = new ResponseDispatcher(m_reader, m_metrics);
+		m_transport.open(baud, m_reader);
+		m_nBaud = baud;
     	return true;
     }
 
+    /**
+     * Close link to device
+     * @return True on success
+     */
+    public boolean close() {
+    	if(m_metrics != null)
+    		m_metrics.unregister(); //Still counted in total
+    	if(m_transport == null || !m_transport.isOpen()) {
+    		stopCapture();
+    		return true;
+    	}
+    	try {
+    		m_transport.close();
+    		return true;
+    	} catch(IOException e) {
+    		Log.debug(Log.PROTOCOL, "Failed to close ESP8266 link: %s", e.getMessage());
+    		return false;
+    	} finally {
+    		stopCapture();
+    	}
+    }
+
+    /**
+     * Record all traffic, DTR/RTS changes and port events to a capture file until stopCapture() or close()
+     * @param capture Capture to record to, e.g. from WireCapture.create(). Null to stop capture.
+     * @note Any previous capture is closed
+     */
+    public void startCapture(WireCapture capture) {
+    	if(m_transport == null)
+    		return;
+    	WireCapture previous = m_transport.getCapture();
+    	m_transport.setCapture(capture);
+    	if(capture != null && m_transport.isOpen())
+    		capture.baud(m_nBaud); //Replay needs current rate of an already open link
+    	if(previous != null)
+    		previous.close();
+    }
+
+    /**
+     * Stop recording and close capture file. Does nothing if not capturing.
+     */
+    public void stopCapture() {
+    	startCapture(null);
+    }
+
+    /**
+     * @return Link to device
+     */
+    public Transport getTransport() {
+    	return m_transport;
+    }
+
+    /**
+     * @return Metrics of this link, also published through JMX while open
+     */
+    public LinkMetrics getMetrics() {
+    	return m_metrics;
+    }
+
     /**
      * Reset ESP8266
      * @param bootloader True to boot in to bootloader
@@ -93,8 +271,20 @@ public class esp8266 {
      * @note Uses RTS and DTS lines as defined for nodeMCU
      */
     public boolean reset(boolean bootloader) {
-    	if(m_serialPort == null || !m_serialPort.isOpened())
+    	return reset(bootloader, m_nResetStrategy);
+    }
+
+    /**
+     * Reset ESP8266 using a specific strategy
+     * @param bootloader True to boot in to bootloader
+     * @param strategy ESP_RESET_* value describing how DTR and RTS are wired
+     * @return True on success
+     */
+    private boolean reset(boolean bootloader, int strategy) {
+    	if(m_transport == null || !m_transport.isOpen())
     		return false;
+    	if(strategy == ESP_RESET_NONE)
+    		return bootloader; //Nothing we can do - user resets device
     	try {
     		/* DTR|RTS||RST|GPI0
     		 *  0 | 0 || 1 | 1
@@ -104,101 +294,303 @@ public class esp8266 {
     		 *  GPI0 Low for flash mode, High for run mode
     		 *  RST Low for reset, High for run
     		 *  NODEMCU circuit diagram shows DTS and RTS signals being inverted (NOT outputs)
+    		 *  ESP_RESET_RTS swaps the roles of DTR and RTS
     		 *  */
-    		
-    		//!@todo Check whether setRTS/DTR is inverted
+    		boolean bSwap = (strategy == ESP_RESET_RTS);
 
     		//Assert reset
-    		m_serialPort.setDTR(true);
-    		m_serialPort.setRTS(false);
-    		Thread.sleep(50);
+    		setLines(bSwap, true, false);
+    		Thread.sleep(ESP_RESET_HOLD);
     		//Choose boot mode
-    		m_serialPort.setDTR(false);
-    		m_serialPort.setRTS(bootloader);
-	    	Thread.sleep(50);
+    		setLines(bSwap, false, bootloader);
+	    	Thread.sleep(ESP_RESET_HOLD);
 	    	//Free GPI0 port
-	    	m_serialPort.setRTS(false);
-	    	m_serialPort.closePort();
-		} catch(SerialPortException e) {
-			Main.debug("Failed to reset ESP8266 - serial port error");
+	    	setLines(bSwap, false, false);
+		} catch(IOException e) {
+			Log.debug(Log.PROTOCOL, "Failed to reset ESP8266 - serial port error");
 			return false;
 		} catch(InterruptedException e) {
-			Main.debug("Failed to reset ESP8266 - sleep interrupted");
+			Log.debug(Log.PROTOCOL, "Failed to reset ESP8266 - sleep interrupted");
+			Thread.currentThread().interrupt();
 			return false;
 		}
     	return true;
     }
+
+    private void setLines(boolean bSwap, boolean bReset, boolean bBoot) throws IOException {
+    	m_transport.setDtr(bSwap ? bBoot : bReset);
+    	m_transport.setRts(bSwap ? bReset : bBoot);
+    }
     
 	/**
 	 * Connect to ESP8266 in programming mode
 	 * @return True on success
+	 * @note Tries the current reset strategy first then each other strategy. Stops at the first SYNC response.
 	 */
 	public boolean connect() {
-		//!@todo Set appropriate number of reset and sync attempts
-		try {
-			for(int nAttempt = 0; nAttempt < 4; ++nAttempt) {
-				reset(true);
-				// worst-case latency timer should be 255ms (probably <20ms)
-				Thread.sleep(255);
-				m_serialPort.readBytes();
-				sync();
+		int nStrategies = ESP_RESET_STRATEGIES;
+		if(!m_transport.hasLineControl()) {
+			m_nResetStrategy = ESP_RESET_NONE; //Device must be put in to bootloader by hand
+			nStrategies = 1;
+		}
+		for(int nStrategy = 0; nStrategy < nStrategies; ++nStrategy) {
+			int nTry = (m_nResetStrategy + nStrategy) % ESP_RESET_STRATEGIES;
+			for(int nAttempt = 0; nAttempt < ESP_SYNC_ATTEMPTS; ++nAttempt) {
+				if(connect(nTry)) {
+					Log.debug(Log.PROTOCOL, "Connected with reset strategy %d after %dms", nTry, m_nConnectLatency);
+					m_nResetStrategy = nTry;
+					return true;
+				}
+				if(Thread.currentThread().isInterrupted())
+					return false;
 			}
-		} catch(SerialPortException e) {
-			Main.debug("Failed to connect to ESP8266 - serial port error");
-		} catch(InterruptedException e) {
-			Main.debug("Failed to connect to ESP8266 - sleep interrupted");
 		}
-		for(int nAttempt = 0; nAttempt < 4; ++nAttempt) {
-			sync();
-			if(slipRead() != null)
+		return false;
+	}
+
+	/**
+	 * Reset in to bootloader and send SYNC until device responds
+	 * @param strategy ESP_RESET_* value
+	 * @return True if device responded to SYNC
+	 */
+	private boolean connect(int strategy) {
+		if(!reset(true, strategy) && strategy != ESP_RESET_NONE)
+			return false;
+		long lReleased = System.currentTimeMillis();
+		m_dispatcher.clear();
+		m_anOtp = null; //May be a different device after reset
+		m_bFlashId = false;
+		m_bStub = false;
+		m_bDeflate = false;
+		m_nFlashBlock = ESP_FLASH_BLOCK;
+		m_nFlashWindow = 1; //ROM handles one command at a time
+		if(strategy == m_nResetStrategy && m_nConnectLatency > ESP_SYNC_INTERVAL) {
+			//Known hardware - don't disturb ROM auto-baud detection while it boots
+			try {
+				Thread.sleep(m_nConnectLatency - ESP_SYNC_INTERVAL);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		long lDeadline = lReleased + ESP_SYNC_WINDOW;
+		int nLatency = m_nConnectLatency;
+		while(System.currentTimeMillis() < lDeadline) {
+			if(isSuccess(sendCommand(ESP_SYNC_INTERVAL, ESP_OP_SYNC, SYNC_DATA))) {
+				m_nConnectLatency = (int)(System.currentTimeMillis() - lReleased);
+				drain();
 				return true;
+			}
 		}
+		m_nConnectLatency = nLatency;
 		return false;
 	}
+
+	/**
+	 * Discard the remaining responses to SYNC commands. ROM sends several responses to each SYNC.
+	 */
+	private void drain() {
+		while(m_dispatcher.read(ESP_SYNC_INTERVAL) != null)
+			; //Discard
+	}
+
+	/**
+	 * Set how to reset the device and how long it takes to respond, e.g. as remembered from a previous session
+	 * @param strategy ESP_RESET_* value to try first
+	 * @param latency Milliseconds from reset to first SYNC response or -1 if unknown
+	 */
+	public void setConnectHint(int strategy, int latency) {
+		if(strategy < 0 || strategy >= ESP_RESET_STRATEGIES)
+			return;
+		m_nResetStrategy = strategy;
+		m_nConnectLatency = latency;
+	}
+
+	/**
+	 * @return Reset strategy that last connected (ESP_RESET_*)
+	 */
+	public int getResetStrategy() {
+		return m_nResetStrategy;
+	}
+
+	/**
+	 * @return Milliseconds from reset to first SYNC response on last connect or -1 if unknown
+	 */
+	public int getConnectLatency() {
+		return m_nConnectLatency;
+	}
+
+	/**
+	 * @return Quantity of received frames which matched no command awaiting response
+	 */
+	public int getDeadLetters() {
+		return m_dispatcher.getDeadLetters();
+	}
 	
-    //Perform a connection test
-    private void sync() {
-    	int[] array = new int[59];
-    	array[0] = 0x07;
-    	array[1] = 0x07;
-    	array[2] = 0x12;
-    	array[3] = 0x20;
-    	for(int i=0; i<32; ++i)
-    		array[i+4] = 0x55;
-        sendCommand(ESP_OP_SYNC, array, 0);
-        for(int i=0; i<7; ++i)
-            slipRead();
+    /**
+     * Upload flasher stub to RAM and run it, switching session to the stub's command set
+     * @param stub Stub to run
+     * @return True if stub is running. On failure the ROM loader may not be responding so call connect() to fall back to ROM.
+     */
+    public boolean loadStub(StubLoader stub) {
+    	m_stub = stub;
+    	if(!memLoad(stub.getText(), stub.getTextStart()))
+    		return false;
+    	if(stub.getData() != null && !memLoad(stub.getData(), stub.getDataStart()))
+    		return false;
+    	memFinish(stub.getEntry()); //Stub may start before ROM responds
+    	long lDeadline = System.currentTimeMillis() + ESP_STUB_TIMEOUT;
+    	ByteBuffer frame;
+    	while((frame = slipRead(lDeadline - System.currentTimeMillis())) != null) {
+    		if(frame.equals(StubLoader.STUB_GREETING)) {
+    			Log.debug(Log.PROTOCOL, "Flasher stub running");
+    			m_bStub = true;
+    			m_bDeflate = true;
+    			m_nFlashBlock = ESP_STUB_FLASH_BLOCK;
+    			m_nFlashWindow = ESP_STUB_FLASH_WINDOW;
+    			return true;
+    		}
+    	}
+    	Log.debug(Log.PROTOCOL, "Flasher stub failed to start");
+    	return false;
     }
-    
+
     /**
-     * Write packet of data to device, performing SLIP escaping
-     * @param buffer Byte buffer containing packet data to write to device
-     * @return True on success
+     * @return True if flasher stub is running, false if using ROM loader
+     */
+    public boolean isStub() {
+    	return m_bStub;
+    }
+
+    /**
+     * Change baud rate of device and serial port without closing port
+     * @param baud New baud rate
+     * @return True if device acknowledged change and responds at new rate
+     * @note Requires flasher stub. On failure the link is restored at the previous rate, reconnecting and reloading the stub
+     * if the device changed rate. If that fails the stub is no longer running (isStub() is false) and connect() is required.
      */
-    public boolean write(int[] buffer) {
-    	//A bit wasteful but we create a buffer sufficiently large to handle worse case transform
-    	int[] tempBuffer = new int[2 + buffer.length * 2];
-    	tempBuffer[0] = 0xc0; //Start byte
-    	int nPos = 1; //Cursor used to iterate through temp buffer. Will be size of data at end of iteration.
-    	for(int nIndex=0; nIndex < buffer.length; ++nIndex) {
-    		if(buffer[nIndex] == 0xdb) {
-    			tempBuffer[nPos++] = 0xdb;
-    			tempBuffer[nPos++] = 0xdd;
-    		} else if(buffer[nIndex] == 0xc0) {
-    			tempBuffer[nPos++] = 0xdb;
-    			tempBuffer[nPos++] = 0xdc;
-    		} else {
-    			tempBuffer[nPos++] = buffer[nIndex];
+    public boolean changeBaud(int baud) {
+    	if(!m_bStub)
+    		return false;
+    	int nOldBaud = m_nBaud;
+    	if(!commonCommand(ESP_OP_CHANGE_BAUDRATE, null, baud, m_nBaud)) {
+    		resync(nOldBaud); //Response may have been lost after device changed rate
+    		return false;
+    	}
+    	try {
+    		m_transport.setBaud(baud);
+    	} catch(IOException e) {
+    		Log.debug(Log.PROTOCOL, "Failed to set serial port to %d baud", baud);
+    		resync(nOldBaud);
+    		return false;
+    	}
+    	m_nBaud = baud;
+    	try {
+    		Thread.sleep(50); //Allow device UART to settle
+    	} catch(InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	m_dispatcher.clear();
+    	//Check link with a harmless register read
+    	if(isSuccess(sendCommand(ESP_OP_READ_REG, null, ESP_OTP_MAC0)))
+    		return true;
+    	resync(nOldBaud);
+    	return false;
+    }
+
+    /**
+     * Restore link at a rate known to work after a failed baud change
+     * @param baud Last baud rate acknowledged by device
+     * @return True if flasher stub responds at baud
+     * @note If the device did not change rate only the serial port is restored. Otherwise the device is reset in to the ROM
+     * loader, which detects the rate, and the stub is reloaded.
+     */
+    private boolean resync(int baud) {
+    	try {
+    		m_transport.setBaud(baud);
+    		m_nBaud = baud;
+    	} catch(IOException e) {
+    		Log.debug(Log.PROTOCOL, "Failed to restore serial port to %d baud", baud);
+    		m_bStub = false;
+    		return false;
+    	}
+    	m_dispatcher.clear();
+    	if(isSuccess(sendCommand(ESP_OP_READ_REG, null, ESP_OTP_MAC0)))
+    		return true;
+    	Log.debug(Log.PROTOCOL, "No response at %d baud - reconnecting", baud);
+    	StubLoader stub = m_stub;
+    	if(connect() && stub != null && loadStub(stub))
+    		return true;
+    	m_bStub = false;
+    	return false;
+    }
+
+    /**
+     * Negotiate the fastest working baud rate, falling back one step at a time if the link shows errors
+     * @param maxBaud Highest baud rate to try
+     * @return Baud rate in use or -1 if the link was lost and could not be restored, in which case call connect()
+     * @note Does nothing unless flasher stub is running and the link's rate can be changed, e.g. not through a raw TCP bridge
+     */
+    public int negotiateBaud(int maxBaud) {
+    	if(!m_bStub || !m_transport.hasBaudControl())
+    		return m_nBaud;
+    	int nStartBaud = m_nBaud;
+    	for(int nBaud: ESP_STUB_BAUDS) {
+    		if(nBaud > maxBaud || nBaud <= nStartBaud)
+    			continue;
+    		if(changeBaud(nBaud)) {
+    			Log.debug(Log.PROTOCOL, "Link running at %d baud", nBaud);
+    			return nBaud;
+    		}
+    		if(!m_bStub) {
+    			Log.debug(Log.PROTOCOL, "Link lost after failing at %d baud", nBaud);
+    			return -1;
     		}
+    		Log.debug(Log.PROTOCOL, "Link failed at %d baud - falling back", nBaud);
     	}
-    	tempBuffer[nPos++] = 0xc0; //Stop byte
-    	//nPos has length of array
-    	int[] outBuffer = new int[nPos]; //Create buffer to pass to serial port
-    	System.arraycopy(tempBuffer, 0, outBuffer, 0, nPos);
+    	return m_nBaud;
+    }
+
+    /**
+     * @return Current baud rate of serial port
+     */
+    public int getBaud() {
+    	return m_nBaud;
+    }
+
+    /**
+     * Write a segment to RAM in blocks
+     * @param segment Data to write, position to limit. Buffer position is not changed.
+     * @param offset RAM address to write to
+     * @return True on success
+     */
+    private boolean memLoad(ByteBuffer segment, int offset) {
+    	int nSize = segment.remaining();
+    	int nBlocks = (nSize + ESP_RAM_BLOCK - 1) / ESP_RAM_BLOCK;
+    	if(!memBegin(nSize, nBlocks, ESP_RAM_BLOCK, offset))
+    		return false;
+    	ByteBuffer block = segment.duplicate();
+    	for(int nSeq = 0; nSeq < nBlocks; ++nSeq) {
+    		int nStart = segment.position() + nSeq * ESP_RAM_BLOCK;
+    		block.limit(Math.min(nStart + ESP_RAM_BLOCK, segment.limit()));
+    		block.position(nStart);
+    		if(!memBlock(block, nSeq))
+    			return false;
+    	}
+    	return true;
+    }
+
+    /**
+     * Write SLIP encoded packet to device
+     * @param frame Buffer containing encoded packet between position and limit
+     * @return True on success
+     */
+    private boolean write(ByteBuffer frame) {
+    	m_metrics.sent(frame.remaining(), m_txCodec.getRawLength());
     	try {
-			m_serialPort.writeIntArray(outBuffer);
-		} catch (SerialPortException e) {
-			Main.debug("Failed to write packet to device");
+			m_transport.write(frame);
+		} catch (IOException e) {
+			Log.debug(Log.PROTOCOL, "Failed to write packet to device");
 			return false;
 		}
     	return true;
@@ -206,112 +598,74 @@ public class esp8266 {
 
     /**
      * Validate or calculate checksum of data block
-     * @param data Data block to check
-     * @param checksum Checksum value to validate (set to zero to calculate and return checksum of data block)
-     * @return If nState is zero, the calculated checksum of the block is returned. If nState is a checksum to validate, zero is returned on success
+     * @param data Data block to check, position to limit. Buffer position is not changed.
+     * @param checksum Initial checksum value (ESP_CHECKSUM_MAGIC to calculate checksum of data block)
+     * @return Checksum of data block. If checksum parameter was the checksum of the block then zero is returned on success.
      */
-    public int checksum(int[] data, int checksum)
+    public static int checksum(ByteBuffer data, int checksum)
     {
         int nChecksum = checksum;
-        for(int nIndex = 0; nIndex < data.length; ++nIndex)
-            nChecksum ^= data[nIndex];
+        for(int nIndex = data.position(); nIndex < data.limit(); ++nIndex)
+            nChecksum ^= data.get(nIndex) & 0xff;
         return nChecksum;
     }
 
     /**
      * Send a command and await response
      * @param operation Command operation code
-     * @param data Data block associated with operation
-     * @param checksum Checksum of data
-     * @return Response from device as integer array or null if no response recieved
-     */
-    public int[] sendCommand(int operation, int[] data, int checksum) {
-    	int[] buffer = new int[data.length + ESP_HEADER_SIZE];
-    	/*Populate header
-    		byte message type
-    		byte operation code
-    		short length of payload
-    		int checksum
-    	*/
-    	buffer[ESP_HEADER_MSG_TYPE] = ESP_MSGTYPE_COMMAND; //Message type
-    	buffer[ESP_HEADER_OP] = operation; //request command operation
-    	//!@todo check little / big endian
-    	buffer[ESP_HEADER_LEN] = data.length & 0xFF;
-    	buffer[ESP_HEADER_LEN + 1] = (data.length >> 8) & 0xFF;
-    	//int[] checksum = toIntArray(checksum(data, 0));
-    	System.arraycopy(checksum, 0, buffer, ESP_HEADER_CHECKSUM, 4);
-    	System.arraycopy(data, 0, buffer, ESP_HEADER_SIZE, data.length);
-    	write(buffer);
-    	return readResponse(operation);
+     * @param data Data block associated with operation, position to limit. Set to null if not required. Checksum is calculated if data is present.
+     * @param params Integer parameters which precede data block
+     * @return Response frame from device or null if no response recieved. Only valid until next command.
+     */
+    public ByteBuffer sendCommand(int operation, ByteBuffer data, int... params) {
+    	return sendCommand(ESP_SLIP_TIMEOUT, operation, data, params);
     }
-    
 
-    //Check all received data for a message response to 'operation'. Return the payload.
-    private int[] readResponse(int operation) {    	
-    	int[] result;
-    	//Try several times to get an appropriate header but not indefinitely
-    	for(int nCount = 0; nCount  < ESP_RESPONSE_RETRY; ++nCount) {
-    		result = slipRead();
-    		if(result == null)
-    			return null; //no more data
-    		if(result.length < ESP_HEADER_SIZE)
-    			continue; //too short for a header
-    		if(result[ESP_HEADER_MSG_TYPE] != ESP_MSGTYPE_RESPONSE)
-    			continue; //not a response message
-            if((operation == ESP_OP_NONE) || (result[ESP_HEADER_OP] == operation)) {
-            	//Got the response we were looking for
-            	int[] response = new int[result.length - 8];
-            	System.arraycopy(result, 8, response, 0, result.length - 8);
-                return response;
-            }
-        }
-        return null;    	
+    /**
+     * Send a command which may take longer than usual and await response
+     * @param timeout Maximum time to wait for response in milliseconds
+     * @param operation Command operation code
+     * @param data Data block associated with operation, position to limit. Set to null if not required.
+     * @param params Integer parameters which precede data block
+     * @return Response frame from device or null if no response recieved. Only valid until next command.
+     */
+    private ByteBuffer sendCommand(int timeout, int operation, ByteBuffer data, int... params) {
+    	ResponseDispatcher.Pending pending = m_dispatcher.expect(operation, timeout);
+    	if(!write(m_txCodec.encodeCommand(operation, data, params))) {
+    		m_dispatcher.cancel(pending);
+    		return null;
+    	}
+    	return m_dispatcher.await(pending);
     }
     
     /**
-     * Reads a message from ESP8266, decoding using SLIP escaping
-     * @return Received message as integer array or null on timeout
-     */
-    private int[] slipRead() {
-        boolean bInEscapeSeq = false;
-        while(true) {
-	    	try {
-	        	int[] result = null;
-	        	int nWaiting = m_serialPort.getInputBufferBytesCount();
-	    		int[] array = m_serialPort.readIntArray((nWaiting==0)?1:nWaiting, ESP_SLIP_TIMEOUT);
-				if(array == null || array.length == 0)
-					return null;
-				int nPos = 0; //position within result array
-				for(int nCursor: array) {
-					if(result == null)
-						if(nCursor == 0xc0)
-							result = new int[nWaiting];
-						else
-							return null;
-					else if(bInEscapeSeq) {
-						bInEscapeSeq = false;
-						if(nCursor == 0xdc)
-							result[nPos++] = 0xc0;
-						else if(nCursor == 0xdd)
-							result[nPos++] = 0xdb;
-						else {
-							Main.debug("Invalid SLIP escape 0xdb %0x", nCursor);
-							return null;
-						}
-					}
-					else if(nCursor == 0xdb)
-						bInEscapeSeq = true;
-					else if(nCursor == 0xc0)
-						return result;
-					else
-						result[nPos++] = nCursor;
-				}
-			} catch(SerialPortException e) {
-				Main.debug("Serial port error reading response from ESP8266");
-			} catch(SerialPortTimeoutException e) {
-				Main.debug("Timeout awaiting valid response from ESP8266");
-			}
-        }
+     * Reads a message from ESP8266 without passing it to the dispatcher, e.g. raw data packets
+     * @param timeout Maximum time to wait in milliseconds
+     * @return Received message or null on timeout. Only valid until next read.
+     */
+    private ByteBuffer slipRead(long timeout) {
+    	ByteBuffer frame = m_dispatcher.read(timeout);
+    	if(frame == null) {
+    		Log.debug(Log.PROTOCOL, "Timeout awaiting valid response from ESP8266");
+    		m_metrics.timeout(-1);
+    	}
+    	return frame;
+    }
+
+    private ByteBuffer slipRead() {
+    	return slipRead(ESP_SLIP_TIMEOUT);
+    }
+
+    /**
+     * Check response frame reports success
+     * @param response Response frame
+     * @return True if response present with zero status and error
+     * @note Status and error are the last two bytes of the response data
+     */
+    private static boolean isSuccess(ByteBuffer response) {
+    	if(response == null || response.remaining() < ESP_HEADER_SIZE + 2)
+    		return false;
+    	return response.get(response.limit() - 2) == 0 && response.get(response.limit() - 1) == 0;
     }
 
 /*    """ Read MAC from OTP ROM """
@@ -334,38 +688,64 @@ public class esp8266 {
     /** Read memory address in target
      * 
      * @return Value from memory address
-     * @throws Exception if memory cannot be read
+     * @throws EspException if memory cannot be read
      */
-    private int readReg(int addr) throws Exception {
-    	int[] result = sendCommand(ESP_OP_READ_REG, toIntArray(addr), 0);
-        if(result == null || (result[1] != 0x00) && (result[2] != 0x00)) {
-            throw new Exception(); //!@todo define exception
+    private int readReg(int addr) throws EspException {
+    	ByteBuffer result = sendCommand(ESP_OP_READ_REG, null, addr);
+        if(!isSuccess(result)) {
+            throw new EspException(EspException.Reason.REJECTED, String.format("Unable to read register 0x%08x", addr));
         }
-        return toInteger(result);
+        return result.getInt(ESP_HEADER_VALUE);
     }
 
     /**
      * Sends a command that requires integer arguments (many commands use this format).
      * @param command Operational command for ESP
-     * @param data Integer array of data to send. Set to null if not required.
+     * @param data Data block to send after parameters. Set to null if not required.
      * @param params Variable quantity of integer parameters
      * Returns true on success.
     */
-    private boolean commonCommand(int command, int[] data, int... params) {
-    	int[] buffer = new int[4 * params.length + ((data==null)?0:data.length)];
-    	int nPos = 0;
-    	for(int arg: params) {
-    		System.arraycopy(toIntArray(arg), 0, buffer, nPos+=4, 4);
-    	}
-       	if(data != null)
-    		System.arraycopy(data, 0, buffer, nPos, data.length);
-    	int[] response = sendCommand(command, buffer, (data==null)?0:checksum(data, 0));
-    	if(response == null || response.length < 2 || response[0] != 0 || response[1] !=0)
-    		return false;
-    	return true;
+    private boolean commonCommand(int command, ByteBuffer data, int... params) {
+    	return isSuccess(sendCommand(command, data, params));
     }
     
 
+    /**
+     * Send a batch of commands, keeping up to ESP_BATCH_WINDOW in flight with the stub
+     * @param batch Commands to send. Values from responses are available from batch after return.
+     * @return True if every command succeeded
+     * @note The ROM loader handles one command at a time, as for flash data, so with the ROM each command awaits the previous response
+     */
+    public boolean execute(RegisterBatch batch) {
+    	int nWindow = m_bStub ? ESP_BATCH_WINDOW : 1;
+    	int nCount = batch.size();
+    	int[] anValues = new int[nCount];
+    	boolean[] abSuccess = new boolean[nCount];
+    	ResponseDispatcher.Pending[] pending = new ResponseDispatcher.Pending[nCount];
+    	boolean bSuccess = true;
+    	int nSent = 0;
+    	for(int nDone = 0; nDone < nCount; ++nDone) {
+    		while(nSent < nCount && nSent - nDone < nWindow) {
+    			int nOperation = batch.getOperation(nSent);
+    			pending[nSent] = m_dispatcher.expect(nOperation, ESP_SLIP_TIMEOUT);
+    			if(!write(m_txCodec.encodeCommand(nOperation, null, batch.getParams(nSent)))) {
+    				for(int nIndex = nDone; nIndex <= nSent; ++nIndex)
+    					m_dispatcher.cancel(pending[nIndex]);
+    				return false;
+    			}
+    			++nSent;
+    		}
+    		ByteBuffer response = m_dispatcher.await(pending[nDone]);
+    		abSuccess[nDone] = isSuccess(response);
+    		if(abSuccess[nDone])
+    			anValues[nDone] = response.getInt(ESP_HEADER_VALUE);
+    		else
+    			bSuccess = false; //Keep collecting responses so later commands stay in step
+    	}
+    	batch.setResults(anValues, abSuccess);
+    	return bSuccess;
+    }
+
     /**
      * Write to a register
      * @param address Register address
@@ -392,12 +772,12 @@ public class esp8266 {
     
     /**
      * Write a block of data to memory. Returns true on success.
-     * @param data Data block to write
+     * @param data Data block to write, position to limit
      * @param seq Sequence number of block
      * @return True on success
      */
-    private boolean memBlock(int[] data, int seq) {
-    	return(commonCommand(ESP_OP_MEM_DATA, data, data.length, seq, 0, 0));
+    private boolean memBlock(ByteBuffer data, int seq) {
+    	return(commonCommand(ESP_OP_MEM_DATA, data, data.remaining(), seq, 0, 0));
     }
 
     /**
@@ -416,29 +796,242 @@ public class esp8266 {
      * @return True on success
      */
     public boolean flashBegin(int size, int offset) {
-    	int nBlocks = (size + ESP_FLASH_BLOCK -1) / ESP_FLASH_BLOCK;
+    	int nBlocks = (size + m_nFlashBlock -1) / m_nFlashBlock;
     	int nSectors = (size + ESP_FLASH_SECTOR -1) / ESP_FLASH_SECTOR;
-    	int nStartSector = offset / ESP_FLASH_SECTOR;    	
-    	int nHeadSector = ESP_FLASH_SECTOR_PER_BLOCK - (nStartSector %  ESP_FLASH_SECTOR_PER_BLOCK);
-    	if(nSectors < nHeadSector)
-    		nHeadSector = nSectors;
-    	int nEraseSize;
-    	if(nSectors < 2 * nHeadSector)
-    		nEraseSize = (nSectors + 1) / 2 * ESP_FLASH_SECTOR;
-    	else
-    		nEraseSize = (nSectors - nHeadSector) * ESP_FLASH_SECTOR;
-    	
-    	return commonCommand(ESP_FLASH_BLOCK, null, nEraseSize, nBlocks, ESP_FLASH_BLOCK, offset);    	
+    	int nEraseSize = nSectors * ESP_FLASH_SECTOR; //Stub erases exactly what it is asked to
+    	if(!m_bStub) {
+    		//ROM erase miscounts sectors in the first 64KB block so ask for less
+    		int nStartSector = offset / ESP_FLASH_SECTOR;
+    		int nHeadSector = ESP_FLASH_SECTOR_PER_BLOCK - (nStartSector %  ESP_FLASH_SECTOR_PER_BLOCK);
+    		if(nSectors < nHeadSector)
+    			nHeadSector = nSectors;
+    		if(nSectors < 2 * nHeadSector)
+    			nEraseSize = (nSectors + 1) / 2 * ESP_FLASH_SECTOR;
+    		else
+    			nEraseSize = (nSectors - nHeadSector) * ESP_FLASH_SECTOR;
+    	}
+    	return isSuccess(sendCommand(eraseTimeout(size), ESP_OP_FLASH_BEGIN, null, nEraseSize, nBlocks, m_nFlashBlock, offset));
+    }
+
+    /**
+     * Set listener notified as each flash data block is acknowledged
+     * @param listener Listener passed bytes of data sent (compressed bytes for compressed writes) or null for none
+     */
+    public void setProgressListener(ProgressListener listener) {
+    	m_progress = listener;
+    }
+
+    /**
+     * Set quantity of flash data blocks that may be sent before awaiting response to the first
+     * @param window Quantity of blocks in flight (1 to wait for each response)
+     * @note Only use more than 1 with a loader that queues commands. Loaders write blocks in the order they arrive, not by
+     * sequence number, so a rejected block with more than 1 in flight restarts the whole region from its begin command.
+     * Connecting sets 1 for the ROM loader and loading the flasher stub sets ESP_STUB_FLASH_WINDOW.
+     */
+    public void setFlashWindow(int window) {
+    	m_nFlashWindow = Math.max(1, window);
+    }
+
+    /**
+     * Write an image to flash, keeping up to the flash window of blocks in flight
+     * @param image Data to write, position to limit. Buffer position is not changed.
+     * @param offset Address of flash to write to
+     * @return True on success
+     * @note Responses are matched to blocks in sequence order. With one block in flight a rejected block is resent. With more,
+     * the loader has already written the blocks sent after it so the region is begun again.
+     */
+    public boolean flashWrite(ByteBuffer image, int offset) {
+    	long lStart = System.nanoTime();
+    	for(int nAttempt = 0; ; ++nAttempt) {
+    		if(!flashBegin(image.remaining(), offset))
+    			return false;
+    		int nResult = writeBlocks(ESP_OP_FLASH_DATA, image, true, nAttempt > 0);
+    		if(nResult == BLOCKS_OK)
+    			break;
+    		if(nResult == BLOCKS_FAILED || !restart(nAttempt, offset))
+    			return false;
+    	}
+    	m_metrics.flashWritten(image.remaining(), System.nanoTime() - lStart);
+    	return true;
+    }
+
+    /**
+     * Write an image to flash using compressed data, falling back to uncompressed with the ROM loader or a stub that does not support it
+     * @param image Uncompressed data to write, position to limit. Buffer position is not changed.
+     * @param compressed Image compressed by deflate() or null to compress here
+     * @param offset Address of flash to write to
+     * @return True on success
+     * @note Finish with flashDeflFinish() if isDeflateSupported() is still true, otherwise flashFinish()
+     */
+    public boolean flashDeflWrite(ByteBuffer image, ByteBuffer compressed, int offset) {
+    	if(m_bStub && m_bDeflate) {
+    		long lStart = System.nanoTime();
+    		if(compressed == null)
+    			compressed = deflate(image);
+    		int nBlocks = (compressed.remaining() + m_nFlashBlock - 1) / m_nFlashBlock;
+    		int nAttempt = 0;
+    		while(isSuccess(sendCommand(eraseTimeout(image.remaining()), ESP_OP_FLASH_DEFL_BEGIN, null, image.remaining(), nBlocks, m_nFlashBlock, offset))) {
+    			Log.debug(Log.PROTOCOL, "Writing %d bytes compressed to %d bytes at 0x%06x", image.remaining(), compressed.remaining(), offset);
+    			int nResult = writeBlocks(ESP_OP_FLASH_DEFL_DATA, compressed, false, nAttempt > 0);
+    			if(nResult == BLOCKS_OK) {
+    				m_metrics.flashWritten(image.remaining(), System.nanoTime() - lStart);
+    				return true;
+    			}
+    			if(nResult == BLOCKS_FAILED || !restart(nAttempt++, offset)) //New begin also restarts the loader's inflater
+    				return false;
+    		}
+    		if(nAttempt > 0)
+    			return false; //Loader accepted compressed write before so it is the link that failed
+    		Log.debug(Log.PROTOCOL, "Loader does not support compressed flash - writing uncompressed");
+    		m_bDeflate = false;
+    	}
+    	return flashWrite(image, offset);
+    }
+
+    /**
+     * Finish writing compressed image to Flash
+     * @param reboot True to reboot ESP8266 after completion
+     * @return true on success
+     */
+    public boolean flashDeflFinish(boolean reboot) {
+    	return(commonCommand(ESP_OP_FLASH_DEFL_END, null, (reboot?0:1)));
+    }
+
+    /**
+     * @return True if flasher stub is running and has not rejected compressed flash commands
+     */
+    public boolean isDeflateSupported() {
+    	return m_bDeflate;
+    }
+
+    /**
+     * Compress an image for use with flashDeflWrite()
+     * @param image Data to compress, position to limit. Buffer position is not changed.
+     * @return Buffer containing zlib compressed data
+     */
+    public static ByteBuffer deflate(ByteBuffer image) {
+    	Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    	ByteBuffer in = image.duplicate();
+    	byte[] abIn = new byte[ESP_DEFLATE_CHUNK]; //Memory-mapped images are fed through a small chunk buffer
+    	byte[] abOut = new byte[image.remaining() / 2 + 64];
+    	int nLen = 0;
+    	while(!deflater.finished()) {
+    		if(deflater.needsInput()) {
+    			int nChunk = Math.min(abIn.length, in.remaining());
+    			in.get(abIn, 0, nChunk);
+    			deflater.setInput(abIn, 0, nChunk);
+    			if(!in.hasRemaining())
+    				deflater.finish();
+    		}
+    		if(nLen == abOut.length)
+    			abOut = Arrays.copyOf(abOut, abOut.length * 2);
+    		nLen += deflater.deflate(abOut, nLen, abOut.length - nLen);
+    	}
+    	deflater.end();
+    	return ByteBuffer.wrap(abOut, 0, nLen).slice();
+    }
+
+    /**
+     * Check whether a region may be begun again after a rejected block
+     * @param attempt Quantity of restarts before this one
+     * @param offset Flash address of region
+     * @return True to restart
+     */
+    private boolean restart(int attempt, int offset) {
+    	if(attempt >= ESP_FLASH_RETRY) {
+    		Log.debug(Log.PROTOCOL, "Flash write at 0x%06x failed after %d attempts", offset, attempt + 1);
+    		return false;
+    	}
+    	Log.debug(Log.PROTOCOL, "Flash write at 0x%06x had a rejected block - restarting region", offset);
+    	return true;
+    }
+
+    /**
+     * Send data in flash blocks, keeping up to the flash window of blocks in flight
+     * @param operation Data command operation code
+     * @param image Data to send, position to limit. Buffer position is not changed.
+     * @param pad True to pad final block to full block size
+     * @param retry True if region is being sent again, counting every block as retried
+     * @return BLOCKS_OK on success, BLOCKS_RESTART if region must be begun again or BLOCKS_FAILED
+     * @note Stops with failure if calling thread is interrupted. The loader writes blocks in arrival order, so once a block is
+     * rejected the blocks in flight behind it land in the wrong place. Only with one block in flight is a rejected block resent.
+     */
+    private int writeBlocks(int operation, ByteBuffer image, boolean pad, boolean retry) {
+    	int nBlocks = (image.remaining() + m_nFlashBlock - 1) / m_nFlashBlock;
+    	ByteBuffer block = image.duplicate();
+    	int nNextSeq = 0; //Next block to send
+    	int nAckSeq = 0; //Oldest block awaiting response
+    	int nRetry = 0;
+    	int nSentSeq = 0; //Blocks below this have been sent before
+    	ArrayDeque<ResponseDispatcher.Pending> inFlight = new ArrayDeque<ResponseDispatcher.Pending>();
+    	while(nAckSeq < nBlocks) {
+    		if(Thread.currentThread().isInterrupted()) {
+    			Log.debug(Log.PROTOCOL, "Flash write cancelled");
+    			return BLOCKS_FAILED;
+    		}
+    		while(nNextSeq < nBlocks && nNextSeq - nAckSeq < m_nFlashWindow) {
+    			int nStart = image.position() + nNextSeq * m_nFlashBlock;
+    			block.limit(Math.min(nStart + m_nFlashBlock, image.limit()));
+    			block.position(nStart);
+    			ByteBuffer data = pad ? padBlock(block) : block;
+    			inFlight.add(m_dispatcher.expect(operation, ESP_SLIP_TIMEOUT));
+    			if(!write(m_txCodec.encodeCommand(operation, data, data.remaining(), nNextSeq, 0, 0))) {
+    				for(ResponseDispatcher.Pending pending: inFlight)
+    					m_dispatcher.cancel(pending);
+    				return BLOCKS_FAILED;
+    			}
+    			m_metrics.blockSent(retry || nNextSeq < nSentSeq);
+    			++nNextSeq;
+    			nSentSeq = Math.max(nSentSeq, nNextSeq);
+    		}
+    		if(isSuccess(m_dispatcher.await(inFlight.poll()))) {
+    			++nAckSeq;
+    			nRetry = 0;
+    			if(m_progress != null)
+    				m_progress.progress(Math.min((long)nAckSeq * m_nFlashBlock, image.remaining()), image.remaining());
+    			continue;
+    		}
+    		if(!inFlight.isEmpty()) {
+    			Log.debug(Log.PROTOCOL, "Flash block %d rejected with %d blocks behind it", nAckSeq, inFlight.size());
+    			while(!inFlight.isEmpty())
+    				m_dispatcher.await(inFlight.poll()); //Let loader finish with them before region is begun again
+    			return BLOCKS_RESTART;
+    		}
+    		if(++nRetry > ESP_FLASH_RETRY) {
+    			Log.debug(Log.PROTOCOL, "Flash block %d failed after %d attempts", nAckSeq, ESP_FLASH_RETRY + 1);
+    			return BLOCKS_FAILED;
+    		}
+    		Log.debug(Log.PROTOCOL, "Flash block %d rejected - resending", nAckSeq);
+    		nNextSeq = nAckSeq;
+    	}
+    	return BLOCKS_OK;
+    }
+
+    /**
+     * Pad a short final block to the flash block size with erased (0xff) bytes
+     * @param block Block of data, position to limit
+     * @return Block if it is full size or padded copy in reusable buffer
+     */
+    private ByteBuffer padBlock(ByteBuffer block) {
+    	int nLen = block.remaining();
+    	if(nLen == m_nFlashBlock)
+    		return block;
+    	if(m_abPad.length != m_nFlashBlock)
+    		m_abPad = new byte[m_nFlashBlock];
+    	block.duplicate().get(m_abPad, 0, nLen);
+    	Arrays.fill(m_abPad, nLen, m_nFlashBlock, (byte)0xff);
+    	return ByteBuffer.wrap(m_abPad);
     }
     
     /**
      * Write a block of data to flash
-     * @param data Block of data to write
+     * @param data Block of data to write, position to limit
      * @param seq Block sequence number
      * @return True on success
      */
-    public boolean flashBlock(int[] data, int seq) {
-    	return(commonCommand(ESP_OP_FLASH_DATA, data, data.length, seq, 0, 0));
+    public boolean flashBlock(ByteBuffer data, int seq) {
+    	m_metrics.blockSent(false);
+    	return(commonCommand(ESP_OP_FLASH_DATA, data, data.remaining(), seq, 0, 0));
     }
 
     /**
@@ -450,6 +1043,154 @@ public class esp8266 {
     	return(commonCommand(ESP_OP_FLASH_END, null, (reboot?0:1)));
     }
 
+    /**
+     * Calculate MD5 digest of a region of flash on device
+     * @param offset Flash address of start of region
+     * @param size Quantity of bytes in region
+     * @param digest Array of at least ESP_MD5_SIZE bytes to receive digest
+     * @return True on success
+     * @note Requires flasher stub
+     */
+    public boolean flashMd5(int offset, int size, byte[] digest) {
+    	if(!m_bStub)
+    		return false;
+    	int nTimeout = md5Timeout(size);
+    	ByteBuffer response = sendCommand(nTimeout, ESP_OP_SPI_FLASH_MD5, null, offset, size, 0, 0);
+    	if(!isSuccess(response) || response.remaining() < ESP_HEADER_SIZE + ESP_MD5_SIZE + 2)
+    		return false;
+    	for(int nIndex = 0; nIndex < ESP_MD5_SIZE; ++nIndex)
+    		digest[nIndex] = response.get(ESP_HEADER_SIZE + nIndex);
+    	return true;
+    }
+
+    /**
+     * Request MD5 digest of a region of flash without waiting for the response
+     * @param offset Flash address of start of region
+     * @param size Quantity of bytes in region
+     * @return Pending request to pass to waitDigest() or null on failure
+     * @note Requires flasher stub. The response is collected by later commands or waitDigest() so further commands may be sent while device calculates the digest.
+     */
+    public PendingDigest flashMd5Deferred(int offset, int size) {
+    	if(!m_bStub)
+    		return null;
+    	PendingDigest pending = m_dispatcher.add(new PendingDigest(m_dispatcher.startTime() + md5Timeout(size)));
+    	if(!write(m_txCodec.encodeCommand(ESP_OP_SPI_FLASH_MD5, null, offset, size, 0, 0))) {
+    		m_dispatcher.cancel(pending);
+    		return null;
+    	}
+    	return pending;
+    }
+
+    /**
+     * Wait for response to a deferred digest request
+     * @param pending Request returned by flashMd5Deferred()
+     * @return True if device returned digest
+     */
+    public boolean waitDigest(PendingDigest pending) {
+    	m_dispatcher.await(pending);
+    	return pending.m_bSuccess;
+    }
+
+    private static int md5Timeout(int size) {
+    	return ESP_SLIP_TIMEOUT + (int)((long)size * ESP_MD5_TIMEOUT_PER_MB / 0x100000);
+    }
+
+    private static int eraseTimeout(int size) {
+    	return ESP_SLIP_TIMEOUT + (int)((long)size * ESP_ERASE_TIMEOUT_PER_MB / 0x100000);
+    }
+
+    /**
+     * Read a region of flash in to a file, acknowledging packets as they arrive
+     * @param offset Flash address of start of region
+     * @param length Quantity of bytes to read
+     * @param out File to write to, starting at its current position. Position is not changed.
+     * @param listener Progress listener or null
+     * @param digest Array of at least ESP_MD5_SIZE bytes to receive MD5 of whole region or null
+     * @return True on success
+     * @throws IOException if file cannot be written
+     * @note Requires flasher stub. A stalled read resumes from the last byte received. A read failing the stub's MD5 check is repeated.
+     */
+    public boolean readFlash(int offset, int length, FileChannel out, ProgressListener listener, byte[] digest) throws IOException {
+    	if(!m_bStub)
+    		return false;
+    	MessageDigest md5Total = newMd5();
+    	long lBase = out.position();
+    	int nReceived = 0;
+    	for(int nAttempt = 0; nAttempt <= ESP_READ_RETRY && nReceived < length; ++nAttempt) {
+    		int nStart = nReceived;
+    		int nLength = length - nStart;
+    		MessageDigest md5Checkpoint;
+    		try {
+    			md5Checkpoint = (MessageDigest)md5Total.clone();
+    		} catch(CloneNotSupportedException e) {
+    			throw new IllegalStateException(e);
+    		}
+    		MessageDigest md5Part = newMd5();
+    		if(nAttempt > 0)
+    			Log.debug(Log.PROTOCOL, "Resuming flash read at 0x%06x", offset + nStart);
+    		if(!commonCommand(ESP_OP_READ_FLASH, null, offset + nStart, nLength, ESP_FLASH_SECTOR, ESP_READ_IN_FLIGHT)) {
+    			abortRead(nLength);
+    			continue;
+    		}
+    		ByteBuffer packet = null;
+    		while(nReceived < length) {
+    			packet = slipRead();
+    			if(packet == null)
+    				break;
+    			packet.limit(packet.position() + Math.min(packet.remaining(), length - nReceived));
+    			md5Part.update(packet.duplicate());
+    			md5Total.update(packet.duplicate());
+    			long lPosition = lBase + nReceived;
+    			nReceived += packet.remaining();
+    			while(packet.hasRemaining())
+    				lPosition += out.write(packet, lPosition);
+    			m_ack.putInt(0, nReceived - nStart);
+    			write(m_txCodec.encodeFrame(m_ack));
+    			if(listener != null)
+    				listener.progress(nReceived, length);
+    		}
+    		if(packet == null) {
+    			//Link stalled - keep what arrived and resume from there
+    			Log.debug(Log.PROTOCOL, "Flash read stalled at 0x%06x", offset + nReceived);
+    			abortRead(nLength);
+    			continue;
+    		}
+    		packet = slipRead(); //Stub finishes with MD5 of data sent
+    		if(packet != null && packet.remaining() == ESP_MD5_SIZE && packet.equals(ByteBuffer.wrap(md5Part.digest())))
+    			continue;
+    		//Data corrupt - discard this attempt
+    		Log.debug(Log.PROTOCOL, "Flash read from 0x%06x failed digest check", offset + nStart);
+    		abortRead(nLength);
+    		nReceived = nStart;
+    		md5Total = md5Checkpoint;
+    	}
+    	if(nReceived < length)
+    		return false;
+    	if(digest != null)
+    		System.arraycopy(md5Total.digest(), 0, digest, 0, ESP_MD5_SIZE);
+    	return true;
+    }
+
+    /**
+     * Release a stalled flash read by acknowledging everything then discarding whatever the stub sends
+     * @param length Length of read being abandoned
+     */
+    private void abortRead(int length) {
+    	m_ack.putInt(0, length);
+    	write(m_txCodec.encodeFrame(m_ack));
+    	while(slipRead() != null)
+    		; //Drain until link is quiet
+    	m_dispatcher.clear();
+    }
+
+    static MessageDigest newMd5() {
+    	try {
+    		return MessageDigest.getInstance("MD5");
+    	} catch(NoSuchAlgorithmException e) {
+    		throw new IllegalStateException(e);
+    	}
+    }
+
     /**
      * Run application code in flash
      * @param reboot True to perform reboot first
@@ -462,16 +1203,16 @@ public class esp8266 {
 
     /** Read MAC
      * @return ESP8288 MAC as 6 element integer array
-     * @throws Exception 
+     * @throws EspException if OTP cannot be read or holds unknown OUI
      */
-    int[] getMac() throws Exception {
+    int[] getMac() throws EspException {
     	//!@todo what use is this?
     	int[] mac = new int[6];
-    	int mac0 = readReg(ESP_OTP_MAC0);
-    	int mac1 = readReg(ESP_OTP_MAC1);
-        int mac3 = readReg(ESP_OTP_MAC3);
+    	identify(false);
+    	int mac0 = m_anOtp[0];
+    	int mac1 = m_anOtp[1];
+        int mac3 = m_anOtp[2];
         if(mac3 != 0) {
-        	mac = new int[4];
             mac[0] = (mac3 >> 16) & 0xff;
             mac[1] = (mac3 >> 8) & 0xff;
             mac[2] = mac3 & 0xff;
@@ -486,56 +1227,65 @@ public class esp8266 {
         	mac[2] = 0x74;
         }
         else
-        	throw new Exception();
+        	throw new EspException(EspException.Reason.INVALID, "Unknown OUI");
         mac[3] = (mac1 >> 8) & 0xff;
         mac[4] = mac1 & 0xff;
         mac[5] = (mac0 >> 24) & 0xff;
         return mac;
     }
     
-    public int getChipId() throws Exception {
-    	int id0 = readReg(ESP_OTP_MAC0);
-    	int id1 = readReg(ESP_OTP_MAC1);
-    	return(id0 >> 24) | (id1 & 0xffffff) << 8;
+    public int getChipId() throws EspException {
+    	identify(false);
+    	return(m_anOtp[0] >>> 24) | (m_anOtp[1] & 0xffffff) << 8;
     }
 
     /**
      * Read SPI flash manufacturer and device id
      * @return ID or zero on failure
-     * @throws Exception 
+     * @throws EspException if register cannot be read
      */
-    public int getFlashId() throws Exception {
-        flashBegin(0, 0);
-        writeReg(0x60000240, 0x0, 0xffffffff, 0);
-        writeReg(0x60000200, 0x10000000, 0xffffffff, 0);
-        int flashId = readReg(0x60000240);
-        flashFinish(false);
-        return flashId;
+    public int getFlashId() throws EspException {
+    	if(!m_bFlashId)
+    		identify(true);
+        return m_nFlashId;
     }
 
     /**
-     * Converts an integer to an array representing the little endian byte representation
-     * @param value Value to convert
-     * @return Integer array representing little endian presentation
+     * Read OTP words and optionally flash ID in one burst, caching them until next connect
+     * @param flashId True to include flash ID
+     * @throws EspException if device does not respond
+     * @note Values already cached are not read again
      */
-    private int[] toIntArray(int value) {
-    	int[] intArray = new int[4];
-    	intArray[0] = (value & 0xFF);
-    	intArray[1] = ((value >> 8) & 0xFF);
-    	intArray[2] = ((value >> 16) & 0xFF);
-    	intArray[3] = ((value >> 24) & 0xFF);
-    	return intArray;
-    }
-
-    /**
-     * Converts little endian byte representaton array to integer
-     * @param array 4 element array containing little endian byte representation
-     * @return Integer value or zero if invalid array
-     */
-    private int toInteger(int[] array) {
-    	if(array == null || array.length < 4)
-    		return 0;
-    	return (array[0] & (array[1] << 8) & (array[2] << 16) & (array[3] << 24));
+    public void identify(boolean flashId) throws EspException {
+    	RegisterBatch batch = new RegisterBatch();
+    	int nMac0 = -1, nMac1 = -1, nMac3 = -1, nFlashId = -1;
+    	if(m_anOtp == null) {
+    		nMac0 = batch.readReg(ESP_OTP_MAC0);
+    		nMac1 = batch.readReg(ESP_OTP_MAC1);
+    		nMac3 = batch.readReg(ESP_OTP_MAC3);
+    	}
+    	if(flashId && !m_bFlashId) {
+    		//Flash must be attached before SPI registers can be used
+    		batch.command(ESP_OP_FLASH_BEGIN, 0, 0, m_nFlashBlock, 0);
+    		batch.writeReg(0x60000240, 0x0, 0xffffffff, 0);
+    		batch.writeReg(0x60000200, 0x10000000, 0xffffffff, 0);
+    		nFlashId = batch.readReg(0x60000240);
+    		batch.command(ESP_OP_FLASH_END, 1);
+    	}
+    	if(batch.size() == 0)
+    		return;
+    	execute(batch); //Flash end may be refused by some loaders so check the reads we need
+    	if(nMac0 >= 0) {
+    		if(!batch.isSuccess(nMac0) || !batch.isSuccess(nMac1) || !batch.isSuccess(nMac3))
+    			throw new EspException(EspException.Reason.REJECTED, "Unable to read OTP");
+    		m_anOtp = new int[] {batch.get(nMac0), batch.get(nMac1), batch.get(nMac3)};
+    	}
+    	if(nFlashId >= 0) {
+    		if(!batch.isSuccess(nFlashId))
+    			throw new EspException(EspException.Reason.REJECTED, "Unable to read flash ID");
+    		m_nFlashId = batch.get(nFlashId);
+    		m_bFlashId = true;
+    	}
     }
 
 }
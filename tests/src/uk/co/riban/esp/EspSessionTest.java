@@ -0,0 +1,88 @@
+package uk.co.riban.esp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @brief	EspSession tests run against EspSimulator with flasher stub
+ * @note	The simulator rejects an end command that does not match the write in progress
+ */
+public class EspSessionTest {
+
+	final static int OFFSET = 0x10000;
+	final static int TIMEOUT = 10; //Seconds allowed for each session step
+
+	@Rule
+	public TemporaryFolder m_folder = new TemporaryFolder();
+
+	private ExecutorService m_executor;
+	private EspSimulator m_sim;
+	private EspSession m_session;
+
+	@Before
+	public void setUp() throws Exception {
+		m_executor = Executors.newFixedThreadPool(2);
+		m_sim = new EspSimulator(0x100000, 1);
+		m_sim.setStubSupport(true);
+		m_sim.start();
+		m_session = new EspSession(new esp8266(m_sim.getHostTransport(), esp8266.ESP_ROM_BAUD), m_executor);
+		complete("connect", m_session.connect());
+		assertTrue("stub", m_session.loadStub(TestStub.create(m_folder)).get());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		m_session.close().get();
+		m_sim.stop();
+		m_executor.shutdown();
+	}
+
+	@Test
+	public void rawBlocksFinishWithFlashEnd() throws Exception {
+		byte[] abImage = image(esp8266.ESP_STUB_FLASH_BLOCK);
+		complete("begin", m_session.flashBegin(abImage.length, OFFSET));
+		complete("block", m_session.flashBlock(ByteBuffer.wrap(abImage), 0));
+		complete("finish", m_session.flashFinish(false));
+		assertArrayEquals(abImage, Arrays.copyOfRange(m_sim.getFlash(), OFFSET, OFFSET + abImage.length));
+	}
+
+	@Test
+	public void compressedWriteFinishesWithDeflateEnd() throws Exception {
+		byte[] abImage = image(3 * esp8266.ESP_STUB_FLASH_BLOCK);
+		complete("write", m_session.write(ByteBuffer.wrap(abImage), OFFSET));
+		complete("finish", m_session.flashFinish(false));
+		assertArrayEquals(abImage, Arrays.copyOfRange(m_sim.getFlash(), OFFSET, OFFSET + abImage.length));
+	}
+
+	/**
+	 * Wait for a session step, failing with its typed error if it did not succeed
+	 */
+	private static void complete(String sStep, CompletableFuture<Void> future) throws Exception {
+		try {
+			future.get(TIMEOUT, TimeUnit.SECONDS);
+		} catch(ExecutionException e) {
+			throw new AssertionError(sStep + " failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	private static byte[] image(int nSize) {
+		byte[] ab = new byte[nSize];
+		new Random(5).nextBytes(ab);
+		return ab;
+	}
+}
@@ -0,0 +1,191 @@
+package uk.co.riban.esp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @brief	Upload regression tests run against EspSimulator
+ * @note	Flash is filled with a pattern before each upload so any sector left unerased, or erased beyond the image, shows up
+ * 			as a mismatch. Images start part way through the first 64KB block, where the ROM miscounts the erase size.
+ */
+public class EspUploadTest {
+
+	final static int FLASH_SIZE = 0x100000; //Smaller than real flash to keep tests quick
+	final static int IMAGE_OFFSET = 0x3000;
+	final static int IMAGE_SIZE = 200000;
+
+	@Rule
+	public TemporaryFolder m_folder = new TemporaryFolder();
+
+	private EspSimulator m_sim;
+	private esp8266 m_esp;
+	private byte[] m_abFilled; //Flash content before upload
+
+	@After
+	public void tearDown() {
+		if(m_esp != null)
+			m_esp.close();
+		if(m_sim != null)
+			m_sim.stop();
+	}
+
+	@Test
+	public void romRawUploadOverFilledFlash() throws IOException {
+		start(false);
+		byte[] abImage = upload(false, EspUpload.VERIFY_NONE);
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void romFallsBackToRawWhenCompressionRequested() throws IOException {
+		start(false);
+		byte[] abImage = upload(true, EspUpload.VERIFY_NONE);
+		assertFalse("ROM has no compressed flash commands", m_esp.isDeflateSupported());
+		assertEquals("commands rejected", 0, m_esp.getMetrics().getRejectedResponses());
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void romResendsRejectedBlock() throws IOException {
+		start(false);
+		m_sim.setRejectBlock(1);
+		byte[] abImage = upload(false, EspUpload.VERIFY_NONE);
+		assertEquals("faults injected", 1, m_sim.getFaultCount());
+		assertEquals("blocks resent", 1, m_esp.getMetrics().getBlocksRetried());
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void stubRawUploadOverFilledFlash() throws IOException {
+		start(true);
+		byte[] abImage = upload(false, EspUpload.VERIFY_DIGEST);
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void stubWindowRestartsAfterRejectedBlock() throws IOException {
+		start(true);
+		m_sim.setRejectBlock(1); //Block 2 is in flight behind it
+		byte[] abImage = upload(false, EspUpload.VERIFY_DIGEST);
+		assertEquals("faults injected", 1, m_sim.getFaultCount());
+		assertTrue("region resent", m_esp.getMetrics().getBlocksRetried() > 1);
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void stubDeflateWindowRestartsAfterRejectedBlock() throws IOException {
+		start(true);
+		m_sim.setRejectBlock(0); //Inflater must not see block 1 twice
+		byte[] abImage = upload(true, EspUpload.VERIFY_DIGEST);
+		assertTrue(m_esp.isDeflateSupported());
+		assertEquals("faults injected", 1, m_sim.getFaultCount());
+		assertTrue("region resent", m_esp.getMetrics().getBlocksRetried() > 1);
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void stubDeflateUploadOverFilledFlash() throws IOException {
+		start(true);
+		byte[] abImage = upload(true, EspUpload.VERIFY_DIGEST);
+		assertTrue(m_esp.isDeflateSupported());
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void stubDeflateUploadWithReadback() throws IOException {
+		start(true);
+		byte[] abImage = upload(true, EspUpload.VERIFY_READBACK);
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void baudFallsBackToFastestWorkingRate() throws IOException {
+		start(true);
+		m_sim.setMaxBaud(921600);
+		assertEquals(921600, m_esp.negotiateBaud(2000000));
+		assertTrue("stub running after fallback", m_esp.isStub());
+		byte[] abImage = upload(true, EspUpload.VERIFY_DIGEST);
+		assertFlash(abImage);
+	}
+
+	@Test
+	public void baudFailureReportedWhenLinkCannotBeRestored() throws IOException {
+		start(true, esp8266.ESP_RESET_NONE); //Device cannot be reset to recover
+		m_sim.setMaxBaud(esp8266.ESP_ROM_BAUD);
+		assertEquals(-1, m_esp.negotiateBaud(2000000));
+		assertFalse(m_esp.isStub());
+	}
+
+	private void start(boolean bStub) throws IOException {
+		start(bStub, esp8266.ESP_RESET_DTR);
+	}
+
+	/**
+	 * Start simulator with filled flash and connect to it
+	 * @param bStub True to run flasher stub after connecting
+	 * @param nWiring ESP_RESET_* wiring of simulated board. With ESP_RESET_NONE the device starts in its bootloader.
+	 */
+	private void start(boolean bStub, int nWiring) throws IOException {
+		m_sim = new EspSimulator(FLASH_SIZE, 1);
+		m_sim.setStubSupport(bStub);
+		m_sim.setWiring(nWiring);
+		m_abFilled = pattern(FLASH_SIZE, 2);
+		m_sim.loadFlash(0, m_abFilled);
+		m_sim.start();
+		if(nWiring == esp8266.ESP_RESET_NONE)
+			m_sim.bootloader();
+		m_esp = new esp8266(m_sim.getHostTransport(), esp8266.ESP_ROM_BAUD);
+		assertTrue("connect", m_esp.connect());
+		if(bStub)
+			assertTrue("load stub", m_esp.loadStub(TestStub.create(m_folder)));
+	}
+
+	/**
+	 * Upload a new image at IMAGE_OFFSET and finish without reboot
+	 * @return Image written
+	 */
+	private byte[] upload(boolean bCompress, int nVerify) {
+		byte[] abImage = pattern(IMAGE_SIZE, 3);
+		EspUpload upload = new EspUpload(m_esp);
+		upload.setCompress(bCompress);
+		upload.setDifferential(false);
+		upload.setVerify(nVerify);
+		assertTrue("upload", upload.upload(ByteBuffer.wrap(abImage), null, IMAGE_OFFSET));
+		assertTrue("finish", upload.finish(false));
+		return abImage;
+	}
+
+	/**
+	 * Check image is in flash and flash outside the sectors it occupies is unchanged
+	 */
+	private void assertFlash(byte[] abImage) {
+		byte[] abFlash = m_sim.getFlash();
+		int nEnd = (IMAGE_OFFSET + abImage.length + esp8266.ESP_FLASH_SECTOR - 1) / esp8266.ESP_FLASH_SECTOR * esp8266.ESP_FLASH_SECTOR;
+		assertArrayEquals("image", abImage, Arrays.copyOfRange(abFlash, IMAGE_OFFSET, IMAGE_OFFSET + abImage.length));
+		assertArrayEquals("flash before image", Arrays.copyOfRange(m_abFilled, 0, IMAGE_OFFSET), Arrays.copyOfRange(abFlash, 0, IMAGE_OFFSET));
+		assertArrayEquals("flash after image", Arrays.copyOfRange(m_abFilled, nEnd, FLASH_SIZE), Arrays.copyOfRange(abFlash, nEnd, FLASH_SIZE));
+	}
+
+	/**
+	 * @return Partly compressible data, as firmware images are
+	 */
+	private static byte[] pattern(int nSize, long lSeed) {
+		byte[] ab = new byte[nSize];
+		Random random = new Random(lSeed);
+		for(int nIndex = 0; nIndex < nSize; ++nIndex)
+			ab[nIndex] = (byte)(nIndex % 4 == 0 ? random.nextInt() : nIndex / 256);
+		return ab;
+	}
+}
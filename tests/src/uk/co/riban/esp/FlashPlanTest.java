@@ -0,0 +1,149 @@
+package uk.co.riban.esp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @brief	FlashPlan tests of span grouping, gap fill and overlap rejection
+ * @note	Images are raw (not application) files placed away from the boot address
+ */
+public class FlashPlanTest {
+
+	final static int SECTOR = esp8266.ESP_FLASH_SECTOR;
+	final static int BASE = 0x10000;
+
+	@Rule
+	public TemporaryFolder m_folder = new TemporaryFolder();
+
+	private int m_nImages = 0;
+
+	@Test
+	public void imagesInSeparateSectorsKeepTheirMapping() throws IOException {
+		FlashPlan plan = new FlashPlan();
+		FirmwareImage a = image(0x1800);
+		FirmwareImage b = image(0x800);
+		plan.add(BASE + 2 * SECTOR, b);
+		plan.add(BASE, a);
+		plan.build();
+		List<FlashPlan.Span> spans = plan.getSpans();
+		assertEquals(2, spans.size());
+		assertEquals(BASE, spans.get(0).m_nOffset);
+		assertEquals(BASE + 2 * SECTOR, spans.get(1).m_nOffset);
+		assertTrue("written from mapping", spans.get(0).m_data.isDirect());
+		assertArrayEquals("image digest kept", a.getMd5(), spans.get(0).m_abMd5);
+		assertArrayEquals("image digest kept", b.getMd5(), spans.get(1).m_abMd5);
+	}
+
+	@Test
+	public void sharedSectorWrittenAsOwnSpan() throws IOException {
+		FlashPlan plan = new FlashPlan();
+		FirmwareImage a = image(0x1800);
+		FirmwareImage b = image(0x3000);
+		plan.add(BASE, a);
+		plan.add(BASE + 0x1900, b);
+		plan.build();
+		List<FlashPlan.Span> spans = plan.getSpans();
+		assertEquals(3, spans.size());
+		assertSpan(spans.get(0), BASE, BASE + SECTOR, true);
+		assertSpan(spans.get(1), BASE + SECTOR, BASE + 2 * SECTOR, false);
+		assertSpan(spans.get(2), BASE + 2 * SECTOR, BASE + 0x4900, true);
+		byte[] abExpected = filled(0x4900);
+		copy(a, abExpected, 0);
+		copy(b, abExpected, 0x1900);
+		assertArrayEquals(abExpected, flatten(spans));
+	}
+
+	@Test
+	public void smallImagesWithinOneSectorShareOneSpan() throws IOException {
+		FlashPlan plan = new FlashPlan();
+		FirmwareImage a = image(0x1100);
+		FirmwareImage b = image(0x100);
+		FirmwareImage c = image(0x2000);
+		plan.add(BASE, a);
+		plan.add(BASE + 0x1200, b);
+		plan.add(BASE + 0x1400, c);
+		plan.build();
+		List<FlashPlan.Span> spans = plan.getSpans();
+		assertEquals(3, spans.size());
+		assertSpan(spans.get(0), BASE, BASE + SECTOR, true);
+		assertSpan(spans.get(1), BASE + SECTOR, BASE + 2 * SECTOR, false);
+		assertSpan(spans.get(2), BASE + 2 * SECTOR, BASE + 0x3400, true);
+		byte[] abExpected = filled(0x3400);
+		copy(a, abExpected, 0);
+		copy(b, abExpected, 0x1200);
+		copy(c, abExpected, 0x1400);
+		assertArrayEquals(abExpected, flatten(spans));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void overlappingImagesRejected() throws IOException {
+		FlashPlan plan = new FlashPlan();
+		plan.add(BASE, image(0x1800));
+		plan.add(BASE + 0x1000, image(0x1000));
+		plan.build();
+	}
+
+	@Test(expected = IOException.class)
+	public void rawImageAtBootAddressRejected() throws IOException {
+		new FlashPlan().add(0, image(0x1000));
+	}
+
+	/**
+	 * Check a span's range and whether it is a view of a mapped image rather than a heap copy
+	 */
+	private static void assertSpan(FlashPlan.Span span, int nStart, int nEnd, boolean bMapped) {
+		assertEquals(String.format("start of %s", span.m_sName), nStart, span.m_nOffset);
+		assertEquals(String.format("end of %s", span.m_sName), nEnd, span.getEnd());
+		assertEquals(String.format("%s mapped", span.m_sName), bMapped, span.m_data.isDirect());
+	}
+
+	/**
+	 * @return Content of contiguous spans
+	 */
+	private static byte[] flatten(List<FlashPlan.Span> spans) {
+		int nStart = spans.get(0).m_nOffset;
+		byte[] ab = new byte[spans.get(spans.size() - 1).getEnd() - nStart];
+		int nPos = nStart;
+		for(FlashPlan.Span span: spans) {
+			assertEquals("spans contiguous", nPos, span.m_nOffset);
+			span.m_data.duplicate().get(ab, span.m_nOffset - nStart, span.m_data.remaining());
+			nPos = span.getEnd();
+		}
+		return ab;
+	}
+
+	private static byte[] filled(int nSize) {
+		byte[] ab = new byte[nSize];
+		Arrays.fill(ab, (byte)0xff);
+		return ab;
+	}
+
+	private static void copy(FirmwareImage image, byte[] abTo, int nOffset) {
+		image.getData().get(abTo, nOffset, image.getSize());
+	}
+
+	/**
+	 * Write a raw image file and map it
+	 */
+	private FirmwareImage image(int nSize) throws IOException {
+		byte[] ab = new byte[nSize];
+		new Random(++m_nImages).nextBytes(ab);
+		ab[0] = 0; //Not ESP_IMAGE_MAGIC
+		File file = m_folder.newFile("image" + m_nImages + ".bin");
+		Files.write(file.toPath(), ab);
+		return FirmwareImage.open(file.getPath());
+	}
+}
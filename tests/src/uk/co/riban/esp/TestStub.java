@@ -0,0 +1,30 @@
+package uk.co.riban.esp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @brief	Flasher stub for tests run against EspSimulator
+ */
+class TestStub {
+
+	/**
+	 * Write a stub file with placeholder code - the simulator starts its stub when any code is run
+	 * @param folder Folder to write stub file to
+	 * @return Stub loaded from file
+	 */
+	static StubLoader create(TemporaryFolder folder) throws IOException {
+		byte[] abText = new byte[2048];
+		new Random(4).nextBytes(abText);
+		File file = folder.newFile("stub.json");
+		String sJson = String.format("{\"text\": \"%s\", \"text_start\": 1074790400, \"entry\": 1074790404}", Base64.getEncoder().encodeToString(abText));
+		Files.write(file.toPath(), sJson.getBytes(StandardCharsets.US_ASCII));
+		return StubLoader.load(file.getPath());
+	}
+}